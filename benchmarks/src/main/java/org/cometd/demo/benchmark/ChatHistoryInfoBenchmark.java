@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.demo.model.ChatHistoryInfo;
+import org.cometd.demo.model.ChatInfo;
+import org.cometd.demo.model.Membership;
+import org.cometd.demo.model.RoomInfo;
+import org.cometd.demo.model.UserInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures {@link ChatHistoryInfo#add(ChatInfo)} and {@link ChatHistoryInfo#getChatInfos()}
+ * when many threads archive chat messages to the same room, with and without concurrent readers.</p>
+ * <p>Writers are serialized per room, as in {@code ChatHistoryService}, while readers never lock.</p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatHistoryInfoBenchmark {
+    @Param({"5", "100"})
+    private int maxEntries;
+    private ChatHistoryInfo history;
+    private ChatInfo chatInfo;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        history = new ChatHistoryInfo(new RoomInfo(1, "room", Membership.BRONZE), maxEntries);
+        chatInfo = new ChatInfo(new UserInfo("user", Membership.BRONZE), "Hello, World");
+        for (int i = 0; i < maxEntries; ++i) {
+            history.add(chatInfo);
+        }
+    }
+
+    @Benchmark
+    @Group("add")
+    @GroupThreads(4)
+    public ChatInfo add() {
+        synchronized (history) {
+            return history.add(chatInfo);
+        }
+    }
+
+    @Benchmark
+    @Group("addAndGet")
+    @GroupThreads(3)
+    public ChatInfo addWhileReading() {
+        synchronized (history) {
+            return history.add(chatInfo);
+        }
+    }
+
+    @Benchmark
+    @Group("addAndGet")
+    @GroupThreads(1)
+    public List<ChatInfo> getWhileAdding() {
+        return history.getChatInfos();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.benchmark;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.demo.CompactJSONContextClient;
+import org.cometd.demo.JSONContextClient;
+import org.cometd.demo.model.BinaryInfoCodec;
+import org.cometd.demo.model.ChatHistoryInfo;
+import org.cometd.demo.model.ChatInfo;
+import org.cometd.demo.model.CompactInfoCodec;
+import org.cometd.demo.model.InfoPool;
+import org.cometd.demo.model.Membership;
+import org.cometd.demo.model.RoomChatInfo;
+import org.cometd.demo.model.RoomInfo;
+import org.cometd.demo.model.UserInfo;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the encoding and the round-trip of each {@code *Info} object with the convertors
+ * of {@link JSONContextClient}, that emit class hints, with the convertors of
+ * {@link CompactJSONContextClient}, that do not, and with {@link BinaryInfoCodec}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertorBenchmark {
+    @Param({"UserInfo", "RoomInfo", "ChatInfo", "RoomChatInfo", "ChatHistoryInfo"})
+    private String type;
+    @Param({"hinted", "compact", "binary"})
+    private String codec;
+    private Object object;
+    private InfoPool infoPool;
+    private CompactInfoCodec compactCodec;
+    private JSON json;
+    private String encoded;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        UserInfo userInfo = new UserInfo("user", Membership.SILVER);
+        RoomInfo roomInfo = new RoomInfo(42, "Chat Room", Membership.BRONZE);
+        ChatInfo chatInfo = new ChatInfo(userInfo, "Hello, World");
+        object = switch (type) {
+            case "UserInfo" -> userInfo;
+            case "RoomInfo" -> roomInfo;
+            case "ChatInfo" -> chatInfo;
+            case "RoomChatInfo" -> new RoomChatInfo(roomInfo, chatInfo);
+            case "ChatHistoryInfo" -> {
+                ChatHistoryInfo chatHistoryInfo = new ChatHistoryInfo(roomInfo, 5);
+                for (int i = 0; i < 5; ++i) {
+                    chatHistoryInfo.add(chatInfo);
+                }
+                yield chatHistoryInfo;
+            }
+            default -> throw new IllegalArgumentException(type);
+        };
+        infoPool = new InfoPool();
+        compactCodec = new CompactInfoCodec(infoPool);
+        json = switch (codec) {
+            case "hinted" -> new JSONContextClient(infoPool).getJSON();
+            case "compact" -> new CompactJSONContextClient(infoPool).getJSON();
+            case "binary" -> null;
+            default -> throw new IllegalArgumentException(codec);
+        };
+        if (json == null) {
+            bytes = BinaryInfoCodec.encode(object);
+        } else {
+            encoded = json.toJSON(object);
+        }
+    }
+
+    @Benchmark
+    public Object encode() {
+        if (json == null) {
+            return BinaryInfoCodec.encode(object);
+        }
+        return json.toJSON(object);
+    }
+
+    @Benchmark
+    public Object decode() throws ParseException {
+        if (json == null) {
+            return BinaryInfoCodec.decode(bytes, infoPool);
+        }
+        return "compact".equals(codec) ? compactCodec.parse(encoded, HashMap::new) : json.fromJSON(encoded);
+    }
+
+    @Benchmark
+    public Object roundTrip() throws ParseException {
+        if (json == null) {
+            return BinaryInfoCodec.decode(BinaryInfoCodec.encode(object), infoPool);
+        }
+        String result = json.toJSON(object);
+        return "compact".equals(codec) ? compactCodec.parse(result, HashMap::new) : json.fromJSON(result);
+    }
+}
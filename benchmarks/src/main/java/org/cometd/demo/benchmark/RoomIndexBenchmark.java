@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.demo.model.Membership;
+import org.cometd.demo.model.RoomInfo;
+import org.cometd.demo.service.RoomIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the lookups by room id that {@link org.cometd.demo.service.RoomsService} performs
+ * for every chat message and every join, in the {@link RoomIndex} of all the rooms of the cluster.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RoomIndexBenchmark {
+    @Param({"16", "10000"})
+    private int rooms;
+    private RoomIndex index;
+    private long[] roomIds;
+
+    @Setup
+    public void setup() {
+        index = new RoomIndex();
+        roomIds = new long[1024];
+        for (int i = 0; i < rooms; ++i) {
+            // Room ids are assigned by the cluster in increasing order.
+            long roomId = i + 1;
+            index.put(new RoomIndex.Entry(roomId, new RoomInfo(roomId, "room" + roomId, Membership.BRONZE), "http://localhost:8080/cometd", true, null));
+        }
+        for (int i = 0; i < roomIds.length; ++i) {
+            roomIds[i] = ThreadLocalRandom.current().nextLong(rooms) + 1;
+        }
+    }
+
+    @Benchmark
+    public RoomIndex.Entry get() {
+        return index.get(roomIds[ThreadLocalRandom.current().nextInt(roomIds.length)]);
+    }
+
+    @Benchmark
+    public RoomIndex.Entry getMissing() {
+        return index.get(-roomIds[ThreadLocalRandom.current().nextInt(roomIds.length)]);
+    }
+}
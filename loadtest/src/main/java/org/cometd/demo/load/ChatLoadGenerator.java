@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.load;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.client.BayeuxClient;
+import org.cometd.client.http.jetty.JettyHttpClientTransport;
+import org.cometd.client.transport.ClientTransport;
+import org.cometd.client.websocket.jetty.JettyWebSocketTransport;
+import org.cometd.common.JSONContext;
+import org.cometd.demo.CompactJSONContextClient;
+import org.cometd.demo.JSONContextClient;
+import org.cometd.demo.model.RoomInfo;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+/**
+ * <p>{@link ChatLoadGenerator} simulates many chat users connected to one or more nodes of the
+ * cluster, to measure how the nodes behave under load.</p>
+ * <p>The users are logged in, the rooms are created, and every user joins a room; then, for the
+ * configured duration, the users chat at the configured aggregate rate, and a configured number
+ * of users per second leave their room to join another one.</p>
+ * <p>The rates, the end-to-end delivery latency of chat messages, the room join latency and the
+ * number of failures are reported periodically, and for the whole run at the end.</p>
+ * <p>Run it with {@code --help} to see the options.</p>
+ */
+public class ChatLoadGenerator {
+    private final Config config;
+    private final LoadStats stats = new LoadStats();
+    private final List<LoadUser> users = new ArrayList<>();
+    private final List<Long> roomIds = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+    private HttpClient httpClient;
+    private WebSocketClient webSocketClient;
+
+    public ChatLoadGenerator(Config config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        if (config == null) {
+            System.err.println(Config.USAGE);
+            System.exit(1);
+        }
+        ChatLoadGenerator generator = new ChatLoadGenerator(config);
+        long failures = generator.run();
+        System.exit(failures == 0 ? 0 : 2);
+    }
+
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the number of failures of the run
+     * @throws Exception if the load run cannot be set up
+     */
+    public long run() throws Exception {
+        start();
+        try {
+            login();
+            createRooms();
+            joinRooms();
+            return load();
+        } finally {
+            stop();
+        }
+    }
+
+    private void start() throws Exception {
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        QueuedThreadPool threadPool = new QueuedThreadPool(Math.max(200, Runtime.getRuntime().availableProcessors() * 8));
+        threadPool.setName("load");
+        httpClient = new HttpClient();
+        httpClient.setExecutor(threadPool);
+        // Long-polling needs two connections per user.
+        httpClient.setMaxConnectionsPerDestination(2 * config.users());
+        httpClient.start();
+        if (config.webSocket()) {
+            webSocketClient = new WebSocketClient(httpClient);
+            webSocketClient.start();
+        }
+    }
+
+    private void stop() throws Exception {
+        List<CompletableFuture<Void>> logouts = new ArrayList<>(users.size());
+        for (LoadUser user : users) {
+            logouts.add(user.logout());
+        }
+        try {
+            CompletableFuture.allOf(logouts.toArray(CompletableFuture[]::new)).get(config.timeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException x) {
+            System.out.printf("Timed out logging out users%n");
+        }
+        if (webSocketClient != null) {
+            webSocketClient.stop();
+        }
+        httpClient.stop();
+        scheduler.shutdownNow();
+    }
+
+    private void login() throws Exception {
+        System.out.printf("Logging in %,d users to %s%n", config.users(), config.urls());
+        JSONContext.Client jsonContext = config.compact() ? new CompactJSONContextClient() : new JSONContextClient();
+        // Bound the number of concurrent handshakes to avoid a handshake storm.
+        Semaphore handshakes = new Semaphore(config.handshakes());
+        List<CompletableFuture<Void>> logins = new ArrayList<>(config.users());
+        for (int i = 0; i < config.users(); ++i) {
+            int node = i % config.urls().size();
+            String url = config.urls().get(node);
+            String userName = config.userPrefix() + i + (config.membership() == null ? "" : "/" + config.membership());
+            LoadUser user = new LoadUser(userName, node, newBayeuxClient(url, jsonContext), stats);
+            users.add(user);
+            handshakes.acquire();
+            CompletableFuture<Void> login = user.login();
+            login.whenComplete((r, x) -> handshakes.release());
+            logins.add(login);
+        }
+        await(logins, "log in");
+    }
+
+    private BayeuxClient newBayeuxClient(String url, JSONContext.Client jsonContext) {
+        Map<String, Object> options = new HashMap<>();
+        options.put(ClientTransport.JSON_CONTEXT_OPTION, jsonContext);
+        ClientTransport longPolling = new JettyHttpClientTransport(options, httpClient);
+        if (webSocketClient == null) {
+            return new BayeuxClient(url, scheduler, longPolling);
+        }
+        ClientTransport webSocket = new JettyWebSocketTransport(options, scheduler, webSocketClient);
+        return new BayeuxClient(url, scheduler, webSocket, longPolling);
+    }
+
+    private void createRooms() throws Exception {
+        System.out.printf("Creating %,d rooms%n", config.rooms());
+        String prefix = "load " + Long.toString(System.currentTimeMillis(), 36) + " ";
+        List<CompletableFuture<RoomInfo>> creates = new ArrayList<>(config.rooms());
+        for (int i = 0; i < config.rooms(); ++i) {
+            creates.add(users.get(i % users.size()).createRoom(prefix + i));
+        }
+        await(creates, "create rooms");
+        for (CompletableFuture<RoomInfo> create : creates) {
+            roomIds.add(create.join().id());
+        }
+    }
+
+    private void joinRooms() throws Exception {
+        System.out.printf("Joining %,d users to %,d rooms%n", users.size(), roomIds.size());
+        List<CompletableFuture<RoomInfo>> joins = new ArrayList<>(users.size());
+        for (int i = 0; i < users.size(); ++i) {
+            joins.add(users.get(i).join(roomIds.get(i % roomIds.size())));
+        }
+        await(joins, "join rooms");
+    }
+
+    private long load() throws Exception {
+        System.out.printf("Chatting at %,d messages/s with %,d room changes/s for %d s%n", config.rate(), config.churn(), config.duration());
+        // The users are driven by a single thread, see LoadUser.
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor();
+        List<ScheduledFuture<?>> tasks = new ArrayList<>();
+        try {
+            String padding = "x".repeat(config.textSize());
+            if (config.rate() > 0) {
+                tasks.add(driver.scheduleAtFixedRate(() -> randomUser().chat(padding), 0, TimeUnit.SECONDS.toNanos(1) / config.rate(), TimeUnit.NANOSECONDS));
+            }
+            if (config.churn() > 0 && roomIds.size() > 1) {
+                tasks.add(driver.scheduleAtFixedRate(() -> randomUser().join(randomRoomId()), 0, TimeUnit.SECONDS.toNanos(1) / config.churn(), TimeUnit.NANOSECONDS));
+            }
+            tasks.add(scheduler.scheduleAtFixedRate(() -> stats.reportInterval(System.out), config.report(), config.report(), TimeUnit.SECONDS));
+
+            long begin = System.nanoTime();
+            TimeUnit.SECONDS.sleep(config.duration());
+            for (ScheduledFuture<?> task : tasks) {
+                task.cancel(false);
+            }
+            // Allow in-flight messages to be delivered.
+            TimeUnit.SECONDS.sleep(2);
+            double seconds = (System.nanoTime() - begin) / 1_000_000_000D;
+            stats.reportTotal(System.out, seconds);
+            return stats.getFailures();
+        } finally {
+            driver.shutdownNow();
+        }
+    }
+
+    private LoadUser randomUser() {
+        return users.get(ThreadLocalRandom.current().nextInt(users.size()));
+    }
+
+    private long randomRoomId() {
+        return roomIds.get(ThreadLocalRandom.current().nextInt(roomIds.size()));
+    }
+
+    private void await(List<? extends CompletableFuture<?>> futures, String what) throws Exception {
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(config.timeout(), TimeUnit.SECONDS);
+        if (stats.getFailures() > 0) {
+            System.out.printf("Failures during %s: %d%n", what, stats.getFailures());
+        }
+    }
+
+    /**
+     * @param urls        the URLs of the nodes, users are assigned to them round-robin
+     * @param users       the number of users
+     * @param rooms       the number of rooms
+     * @param rate        the aggregate number of chat messages per second
+     * @param churn       the number of users per second that leave their room to join another one
+     * @param duration    the duration of the load, in seconds
+     * @param textSize    the number of characters appended to the send timestamp of chat messages
+     * @param membership  the membership of the users, or null for the default membership
+     * @param userPrefix  the prefix of the user ids
+     * @param webSocket   whether to use WebSocket rather than long-polling
+     * @param compact     whether to use the JSON context without class hints
+     * @param handshakes  the max number of concurrent handshakes
+     * @param report      the interval between reports, in seconds
+     * @param timeout     the max time to wait for the setup phases, in seconds
+     */
+    public record Config(List<String> urls, int users, int rooms, int rate, int churn, int duration, int textSize,
+                         String membership, String userPrefix, boolean webSocket, boolean compact,
+                         int handshakes, int report, int timeout)
+    {
+        public static final String USAGE = """
+                Usage: java -jar loadtest.jar [--option=value]...
+                  --url=<url>[,<url>...]  the CometD URLs of the nodes (default http://localhost:8080/cometd)
+                  --users=<n>             the number of users (default 1000)
+                  --rooms=<n>             the number of rooms (default 100)
+                  --rate=<n>              the chat messages per second, for all users (default 1000)
+                  --churn=<n>             the room changes per second, for all users (default 10)
+                  --duration=<s>          the duration of the load in seconds (default 60)
+                  --text-size=<n>         the size of the text of chat messages (default 32)
+                  --membership=<tier>     the membership of the users (default bronze)
+                  --user-prefix=<prefix>  the prefix of the user ids (default load)
+                  --transport=<name>      websocket or long-polling (default websocket)
+                  --json-context=<name>   hinted or compact, must match the nodes (default hinted)
+                  --handshakes=<n>        the max concurrent handshakes (default 64)
+                  --report=<s>            the interval between reports in seconds (default 5)
+                  --timeout=<s>           the max time of the setup phases in seconds (default 60)
+                """;
+
+        /**
+         * @param urls       the URLs of the nodes
+         * @param factor     the factor to multiply the number of users and rooms and the rates by
+         * @param userPrefix the prefix of the user ids
+         * @return a copy of this configuration, with the given URLs and user prefix, and scaled by the given factor
+         */
+        public Config scale(List<String> urls, int factor, String userPrefix) {
+            return new Config(urls, users * factor, rooms * factor, rate * factor, churn * factor, duration, textSize,
+                    membership, userPrefix, webSocket, compact, handshakes, report, timeout);
+        }
+
+        /**
+         * @param args the command line arguments
+         * @return the configuration, or null if the arguments are invalid
+         */
+        public static Config parse(String[] args) {
+            Map<String, String> options = new HashMap<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    return null;
+                }
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    return null;
+                }
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+            try {
+                String transport = options.getOrDefault("transport", "websocket");
+                String jsonContext = options.getOrDefault("json-context", "hinted");
+                Config config = new Config(
+                        List.of(options.getOrDefault("url", "http://localhost:8080/cometd").split(",")),
+                        Integer.parseInt(options.getOrDefault("users", "1000")),
+                        Integer.parseInt(options.getOrDefault("rooms", "100")),
+                        Integer.parseInt(options.getOrDefault("rate", "1000")),
+                        Integer.parseInt(options.getOrDefault("churn", "10")),
+                        Integer.parseInt(options.getOrDefault("duration", "60")),
+                        Integer.parseInt(options.getOrDefault("text-size", "32")),
+                        options.get("membership"),
+                        options.getOrDefault("user-prefix", "load"),
+                        "websocket".equals(transport),
+                        "compact".equals(jsonContext),
+                        Integer.parseInt(options.getOrDefault("handshakes", "64")),
+                        Integer.parseInt(options.getOrDefault("report", "5")),
+                        Integer.parseInt(options.getOrDefault("timeout", "60")));
+                boolean valid = config.users() > 0 && config.rooms() > 0 && config.rate() >= 0 && config.churn() >= 0 &&
+                        config.duration() > 0 && config.textSize() >= 0 && config.handshakes() > 0 &&
+                        config.report() > 0 && config.timeout() > 0 &&
+                        ("websocket".equals(transport) || "long-polling".equals(transport)) &&
+                        ("hinted".equals(jsonContext) || "compact".equals(jsonContext));
+                return valid ? config : null;
+            } catch (NumberFormatException x) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.load;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * <p>{@link ClusterHarness} measures how the chat scales with the number of nodes, running the
+ * nodes of the cluster as {@link EmbeddedNode}s in the current JVM, and driving them with
+ * {@link ChatLoadGenerator}.</p>
+ * <p>The scaling scenario is a sequence of cluster sizes; for every step, nodes are added to the
+ * cluster until it reaches the size of the step, then the load is run against all the nodes.
+ * The load is either fixed, or grows linearly with the number of nodes.</p>
+ * <p>During every step the CPU usage and the message rates of every node are reported
+ * periodically, along with the rates and latencies of the load generator; at the end, a table
+ * summarizes the steps, so that the local and remote (that is, cross-node) delivery latencies
+ * can be compared as the cluster grows.</p>
+ * <p>Since the nodes and the load generator share the JVM, the CPU usage of the nodes only
+ * accounts for the threads of their thread pools, and should be compared with the CPU usage
+ * of the whole process.</p>
+ */
+public class ClusterHarness {
+    public static final String USAGE = """
+            Usage: java -cp loadtest.jar org.cometd.demo.load.ClusterHarness [--option=value]...
+              --nodes=<n>[,<n>...]      the cluster sizes of the steps, increasing up to 26 (default 1,2,4,8)
+              --scale=<name>            linear to multiply the load by the number of nodes, or fixed (default linear)
+              --startup.<name>=<value>  an init parameter of StartupServlet for all the nodes
+            and the options of ChatLoadGenerator except --url; with --scale=linear,
+            --users, --rooms, --rate and --churn are per node.
+            """;
+    private static final Map<String, String> STARTUP_PARAMETERS = Map.ofEntries(
+            Map.entry("oortBinary", "true"),
+            Map.entry("badWordsScanPeriod", "5000"),
+            Map.entry("roomsPageSize", "50"),
+            Map.entry("historyMaxEntries", "5"),
+            Map.entry("historyMemoryBudget", "67108864"),
+            Map.entry("historyPageSize", "20"),
+            Map.entry("archiveBatchSize", "64"),
+            Map.entry("archiveBatchDelay", "100"),
+            Map.entry("membersPartitions", "16"),
+            Map.entry("membersBatchSize", "256"),
+            Map.entry("membersFlushInterval", "250"));
+
+    private final List<EmbeddedNode> nodes = new ArrayList<>();
+    private final List<Integer> steps;
+    private final boolean linear;
+    private final Map<String, String> startupParameters;
+    private final ChatLoadGenerator.Config config;
+
+    /**
+     * @param steps             the cluster sizes of the steps
+     * @param linear            whether the load grows linearly with the number of nodes
+     * @param startupParameters the init parameters of {@link org.cometd.demo.StartupServlet}
+     * @param config            the load of a single node
+     */
+    public ClusterHarness(List<Integer> steps, boolean linear, Map<String, String> startupParameters, ChatLoadGenerator.Config config) {
+        this.steps = steps;
+        this.linear = linear;
+        this.startupParameters = startupParameters;
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> steps = new ArrayList<>();
+        String scale = "linear";
+        Map<String, String> startupParameters = new HashMap<>(STARTUP_PARAMETERS);
+        List<String> loadArgs = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--nodes=")) {
+                    for (String step : arg.substring("--nodes=".length()).split(",")) {
+                        steps.add(Integer.parseInt(step));
+                    }
+                } else if (arg.startsWith("--scale=")) {
+                    scale = arg.substring("--scale=".length());
+                } else if (arg.startsWith("--startup.") && arg.indexOf('=') > 0) {
+                    int equals = arg.indexOf('=');
+                    startupParameters.put(arg.substring("--startup.".length(), equals), arg.substring(equals + 1));
+                } else if (!arg.startsWith("--url=")) {
+                    loadArgs.add(arg);
+                }
+            }
+        } catch (NumberFormatException x) {
+            steps.clear();
+            steps.add(0);
+        }
+        if (steps.isEmpty()) {
+            steps.addAll(List.of(1, 2, 4, 8));
+        }
+        ChatLoadGenerator.Config config = ChatLoadGenerator.Config.parse(loadArgs.toArray(String[]::new));
+        boolean valid = config != null && ("linear".equals(scale) || "fixed".equals(scale)) &&
+                steps.get(0) > 0 && steps.get(steps.size() - 1) <= 26;
+        for (int i = 1; valid && i < steps.size(); ++i) {
+            valid = steps.get(i) > steps.get(i - 1);
+        }
+        if (!valid) {
+            System.err.println(USAGE);
+            System.err.println(ChatLoadGenerator.Config.USAGE);
+            System.exit(1);
+        }
+        new ClusterHarness(steps, "linear".equals(scale), startupParameters, config).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        Map<Integer, String> summary = new LinkedHashMap<>();
+        try {
+            for (int step : steps) {
+                grow(step);
+                summary.put(step, load(step));
+            }
+        } finally {
+            for (EmbeddedNode node : nodes) {
+                node.stop();
+            }
+        }
+        System.out.printf("%n%5s %8s %12s %12s %10s %10s %10s %10s %10s %8s%n",
+                "nodes", "users", "sent/s", "deliver/s", "local p50", "local p99", "remote p50", "remote p99", "cpu/node", "failures");
+        summary.values().forEach(System.out::println);
+    }
+
+    private void grow(int size) throws Exception {
+        while (nodes.size() < size) {
+            List<String> cloud = new ArrayList<>();
+            for (EmbeddedNode node : nodes) {
+                cloud.add(node.getURL());
+            }
+            // Joining a single node of the cluster is enough, Oort connects the new node to the others.
+            EmbeddedNode node = new EmbeddedNode(String.valueOf((char)('A' + nodes.size())), startupParameters);
+            node.start(cloud, config.compact());
+            nodes.add(node);
+            System.out.printf("Started node %s at %s%n", node.getName(), node.getURL());
+        }
+        for (EmbeddedNode node : nodes) {
+            node.awaitCluster(size, TimeUnit.SECONDS.toMillis(config.timeout()));
+        }
+    }
+
+    private String load(int size) throws Exception {
+        List<String> urls = new ArrayList<>();
+        for (EmbeddedNode node : nodes) {
+            urls.add(node.getURL());
+        }
+        ChatLoadGenerator.Config stepConfig = config.scale(urls, linear ? size : 1, config.userPrefix() + size + "n");
+        System.out.printf("%n=== %d node(s), %,d users, %,d rooms, %,d messages/s%n", size, stepConfig.users(), stepConfig.rooms(), stepConfig.rate());
+
+        Map<EmbeddedNode, EmbeddedNode.Counters> begin = counters();
+        AtomicReference<Map<EmbeddedNode, EmbeddedNode.Counters>> previous = new AtomicReference<>(begin);
+        long processBegin = processCpuNanos();
+        AtomicLong processPrevious = new AtomicLong(processBegin);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> {
+            Map<EmbeddedNode, EmbeddedNode.Counters> current = counters();
+            long processCurrent = processCpuNanos();
+            report(previous.getAndSet(current), current, processCurrent - processPrevious.getAndSet(processCurrent));
+        }, config.report(), config.report(), TimeUnit.SECONDS);
+
+        ChatLoadGenerator generator = new ChatLoadGenerator(stepConfig);
+        long failures;
+        long start = System.nanoTime();
+        try {
+            failures = generator.run();
+        } finally {
+            reporter.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000D;
+
+        Map<EmbeddedNode, EmbeddedNode.Counters> end = counters();
+        System.out.printf("Step totals:%n");
+        report(begin, end, processCpuNanos() - processBegin);
+        double cpu = 0;
+        for (EmbeddedNode node : nodes) {
+            cpu += end.get(node).ratesSince(begin.get(node)).cpu();
+        }
+
+        LoadStats stats = generator.getStats();
+        Histogram local = stats.getChatLatency(false);
+        Histogram remote = stats.getChatLatency(true);
+        return String.format("%5d %,8d %,12.0f %,12.0f %10d %10d %10d %10d %10.2f %,8d",
+                size, stepConfig.users(), stats.getSent() / seconds, stats.getDelivered() / seconds,
+                local.getValueAtPercentile(50), local.getValueAtPercentile(99),
+                remote.getValueAtPercentile(50), remote.getValueAtPercentile(99),
+                cpu / size, failures);
+    }
+
+    private Map<EmbeddedNode, EmbeddedNode.Counters> counters() {
+        Map<EmbeddedNode, EmbeddedNode.Counters> result = new LinkedHashMap<>();
+        for (EmbeddedNode node : nodes) {
+            result.put(node, node.counters());
+        }
+        return result;
+    }
+
+    private void report(Map<EmbeddedNode, EmbeddedNode.Counters> previous, Map<EmbeddedNode, EmbeddedNode.Counters> current, long processCpuNanos) {
+        StringBuilder builder = new StringBuilder();
+        double seconds = 0;
+        for (EmbeddedNode node : nodes) {
+            EmbeddedNode.Counters before = previous.get(node);
+            EmbeddedNode.Counters after = current.get(node);
+            EmbeddedNode.Rates rates = after.ratesSince(before);
+            seconds = (after.timeNanos() - before.timeNanos()) / 1_000_000_000D;
+            builder.append(String.format("  node %s: cpu %.2f in %,.0f/s out %,.0f/s%n", node.getName(), rates.cpu(), rates.received(), rates.sent()));
+        }
+        if (seconds > 0) {
+            builder.append(String.format("  process: cpu %.2f%n", processCpuNanos / 1_000_000_000D / seconds));
+        }
+        System.out.print(builder);
+    }
+
+    private static long processCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return 0;
+    }
+}
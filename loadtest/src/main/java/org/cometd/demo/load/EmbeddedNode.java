@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.cometd.annotation.server.AnnotationCometDServlet;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.demo.StartupServlet;
+import org.cometd.oort.Oort;
+import org.cometd.oort.OortStaticConfigServlet;
+import org.cometd.oort.SetiServlet;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.jakarta.server.config.JakartaWebSocketServletContainerInitializer;
+
+/**
+ * <p>{@link EmbeddedNode} is a node of the chat cluster embedded in the current JVM, configured
+ * like the demo web application, but with the Oort peers configured statically rather than
+ * discovered via multicast.</p>
+ * <p>The services of the node are created by {@link StartupServlet}, with the init parameters
+ * specified at construction, so that embedded nodes are wired exactly like deployed nodes.</p>
+ * <p>The node counts the non-meta messages it receives and sends, and the CPU time of the threads
+ * of its thread pool, that process the messages of the clients and of the other nodes.</p>
+ */
+public class EmbeddedNode {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final Map<Long, Long> threadCpuNanos = new HashMap<>();
+    private final String name;
+    private final Map<String, String> startupParameters;
+    private final String threadPrefix;
+    private Server server;
+    private ServerConnector connector;
+    private Oort oort;
+    private long cpuNanos;
+
+    /**
+     * @param name              the node name
+     * @param startupParameters the init parameters of {@link StartupServlet}
+     */
+    public EmbeddedNode(String name, Map<String, String> startupParameters) {
+        this.name = name;
+        this.startupParameters = startupParameters;
+        this.threadPrefix = "node-" + name + "-";
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getURL() {
+        return "http://localhost:" + connector.getLocalPort() + "/cometd";
+    }
+
+    public Oort getOort() {
+        return oort;
+    }
+
+    /**
+     * @param cloud   the URLs of the nodes to connect to, the other nodes of the cluster are discovered from them
+     * @param compact whether to use the JSON context without class hints
+     * @throws Exception if the node cannot be started
+     */
+    public void start(List<String> cloud, boolean compact) throws Exception {
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName(threadPrefix.substring(0, threadPrefix.length() - 1));
+        server = new Server(threadPool);
+        connector = new ServerConnector(server);
+        server.addConnector(connector);
+        // Bind now, so that the URL of the node is known before the servlets are initialized.
+        connector.open();
+
+        ServletContextHandler context = new ServletContextHandler(server, "/");
+        JakartaWebSocketServletContainerInitializer.configure(context, null);
+        String jsonContext = compact ? "org.cometd.demo.CompactJSONContext" : "org.cometd.demo.JSONContext";
+
+        ServletHolder cometdHolder = new ServletHolder("cometd", AnnotationCometDServlet.class);
+        cometdHolder.setInitParameter("cometdURLMapping", "/cometd/*");
+        cometdHolder.setInitParameter("timeout", "10000");
+        cometdHolder.setInitParameter("jsonContext", jsonContext + "Server");
+        cometdHolder.setAsyncSupported(true);
+        cometdHolder.setInitOrder(1);
+        context.addServlet(cometdHolder, "/cometd/*");
+
+        ServletHolder oortHolder = new ServletHolder("oort", OortStaticConfigServlet.class);
+        oortHolder.setInitParameter("oort.url", getURL());
+        oortHolder.setInitParameter("oort.secret", "oort_objects");
+        if (!cloud.isEmpty()) {
+            oortHolder.setInitParameter("oort.cloud", String.join(",", cloud));
+        }
+        oortHolder.setInitParameter("jsonContext", jsonContext + "Client");
+        oortHolder.setInitOrder(2);
+        context.getServletHandler().addServlet(oortHolder);
+
+        ServletHolder setiHolder = new ServletHolder("seti", SetiServlet.class);
+        setiHolder.setInitOrder(3);
+        context.getServletHandler().addServlet(setiHolder);
+
+        ServletHolder startupHolder = new ServletHolder("startup", StartupServlet.class);
+        startupHolder.setInitParameters(startupParameters);
+        startupHolder.setInitParameter("node", name);
+        startupHolder.setInitOrder(10);
+        context.getServletHandler().addServlet(startupHolder);
+
+        server.start();
+
+        oort = (Oort)context.getServletContext().getAttribute(Oort.OORT_ATTRIBUTE);
+        oort.getBayeuxServer().addExtension(new BayeuxServer.Extension() {
+            @Override
+            public boolean rcv(ServerSession from, ServerMessage.Mutable message) {
+                received.increment();
+                return true;
+            }
+
+            @Override
+            public boolean send(ServerSession from, ServerSession to, ServerMessage.Mutable message) {
+                sent.increment();
+                return true;
+            }
+        });
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @param size    the number of nodes of the cluster
+     * @param timeout the max time to wait, in milliseconds
+     * @throws Exception if this node does not see the other nodes within the given time
+     */
+    public void awaitCluster(int size, long timeout) throws Exception {
+        long begin = System.nanoTime();
+        while (oort.getKnownComets().size() < size - 1) {
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) > timeout) {
+                throw new TimeoutException("Node " + name + " knows " + oort.getKnownComets() + ", expected " + (size - 1) + " nodes");
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    /**
+     * @return the cumulative counters of this node
+     */
+    public synchronized Counters counters() {
+        long[] ids = THREADS.getAllThreadIds();
+        ThreadInfo[] infos = THREADS.getThreadInfo(ids);
+        for (int i = 0; i < ids.length; ++i) {
+            ThreadInfo info = infos[i];
+            if (info == null || !info.getThreadName().startsWith(threadPrefix)) {
+                continue;
+            }
+            long cpu = THREADS.getThreadCpuTime(ids[i]);
+            if (cpu < 0) {
+                continue;
+            }
+            Long previous = threadCpuNanos.put(ids[i], cpu);
+            cpuNanos += cpu - (previous == null ? 0 : previous);
+        }
+        return new Counters(System.nanoTime(), cpuNanos, received.sum(), sent.sum());
+    }
+
+    /**
+     * @param timeNanos the {@link System#nanoTime()} at which the counters were taken
+     * @param cpuNanos  the CPU time of the threads of the node
+     * @param received  the number of non-meta messages received
+     * @param sent      the number of non-meta messages sent
+     */
+    public record Counters(long timeNanos, long cpuNanos, long received, long sent)
+    {
+        /**
+         * @param previous counters taken earlier
+         * @return the rates since the given counters
+         */
+        public Rates ratesSince(Counters previous) {
+            double seconds = Math.max(1, timeNanos - previous.timeNanos) / 1_000_000_000D;
+            return new Rates((cpuNanos - previous.cpuNanos) / 1_000_000_000D / seconds,
+                    (received - previous.received) / seconds,
+                    (sent - previous.sent) / seconds);
+        }
+    }
+
+    /**
+     * @param cpu      the CPU usage, in cores
+     * @param received the non-meta messages received per second
+     * @param sent     the non-meta messages sent per second
+     */
+    public record Rates(double cpu, double received, double sent)
+    {
+    }
+}
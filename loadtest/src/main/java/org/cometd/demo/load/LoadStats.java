@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.load;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * <p>{@link LoadStats} collects the measurements of a load run: the end-to-end delivery latency
+ * of chat messages, the latency of room joins, the number of messages sent and delivered,
+ * and the number of failures.</p>
+ * <p>The delivery latency is recorded separately for messages delivered by the node of the
+ * sender (local) and for messages forwarded to the users of other nodes (remote).</p>
+ * <p>Latencies are recorded in microseconds into {@link Recorder}s, so that they can be
+ * reported both per interval and cumulatively for the whole run.</p>
+ */
+public class LoadStats {
+    private final Recorder localRecorder = new Recorder(3);
+    private final Recorder remoteRecorder = new Recorder(3);
+    private final Recorder joinRecorder = new Recorder(3);
+    private final Histogram localTotal = new Histogram(3);
+    private final Histogram remoteTotal = new Histogram(3);
+    private final Histogram joinTotal = new Histogram(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private Histogram localInterval;
+    private Histogram remoteInterval;
+    private Histogram joinInterval;
+    private long lastSent;
+    private long lastDelivered;
+    private long lastFailures;
+    private long lastReport = System.nanoTime();
+
+    public void sent() {
+        sent.increment();
+    }
+
+    /**
+     * @param sendNanos the {@link System#nanoTime()} at which the chat message was sent
+     * @param remote    whether the sender is connected to a different node than the receiver
+     */
+    public void delivered(long sendNanos, boolean remote) {
+        delivered.increment();
+        (remote ? remoteRecorder : localRecorder).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendNanos));
+    }
+
+    /**
+     * @param joinNanos the {@link System#nanoTime()} at which the room join was requested
+     */
+    public void joined(long joinNanos) {
+        joinRecorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - joinNanos));
+    }
+
+    public void failed() {
+        failures.increment();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @param remote whether to return the latency of remote or local deliveries
+     * @return the chat delivery latency, in microseconds, up to the last report
+     */
+    public synchronized Histogram getChatLatency(boolean remote) {
+        return (remote ? remoteTotal : localTotal).copy();
+    }
+
+    /**
+     * <p>Prints the rates and latencies since the previous call to this method.</p>
+     *
+     * @param out the stream to print to
+     */
+    public synchronized void reportInterval(PrintStream out) {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastReport) / 1_000_000_000D;
+        lastReport = now;
+
+        localInterval = localRecorder.getIntervalHistogram(localInterval);
+        localTotal.add(localInterval);
+        remoteInterval = remoteRecorder.getIntervalHistogram(remoteInterval);
+        remoteTotal.add(remoteInterval);
+        joinInterval = joinRecorder.getIntervalHistogram(joinInterval);
+        joinTotal.add(joinInterval);
+
+        long sent = this.sent.sum();
+        long delivered = this.delivered.sum();
+        long failures = this.failures.sum();
+        out.printf("sent %,.0f/s delivered %,.0f/s failures %d | local %s | remote %s | join %s%n",
+                (sent - lastSent) / seconds,
+                (delivered - lastDelivered) / seconds,
+                failures - lastFailures,
+                percentiles(localInterval),
+                percentiles(remoteInterval),
+                percentiles(joinInterval));
+        lastSent = sent;
+        lastDelivered = delivered;
+        lastFailures = failures;
+    }
+
+    /**
+     * <p>Prints the totals and the latency distributions of the whole run.</p>
+     *
+     * @param out     the stream to print to
+     * @param seconds the duration of the run in seconds
+     */
+    public synchronized void reportTotal(PrintStream out, double seconds) {
+        reportInterval(out);
+        long sent = this.sent.sum();
+        long delivered = this.delivered.sum();
+        out.printf("%nTotal: sent %,d (%,.0f/s) delivered %,d (%,.0f/s) failures %,d%n",
+                sent, sent / seconds, delivered, delivered / seconds, failures.sum());
+        out.printf("Local chat delivery latency (us): %s%n", percentiles(localTotal));
+        localTotal.outputPercentileDistribution(out, 1D);
+        out.printf("%nRemote chat delivery latency (us): %s%n", percentiles(remoteTotal));
+        remoteTotal.outputPercentileDistribution(out, 1D);
+        out.printf("%nRoom join latency (us): %s%n", percentiles(joinTotal));
+        joinTotal.outputPercentileDistribution(out, 1D);
+    }
+
+    static String percentiles(Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return "-";
+        }
+        return String.format("p50=%d p99=%d p99.9=%d max=%d",
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue());
+    }
+}
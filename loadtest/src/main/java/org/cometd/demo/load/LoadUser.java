@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.load;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.client.BayeuxClient;
+import org.cometd.demo.model.ChatInfo;
+import org.cometd.demo.model.RoomInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link LoadUser} is a simulated chat user that performs the same protocol as
+ * {@code application.js}: it handshakes with the {@code auth} extension, publishes to
+ * {@code /service/init}, joins and leaves rooms and chats in the room it has joined.</p>
+ * <p>Chat messages carry the {@link System#nanoTime()} at which they were sent and the index
+ * of the node of the sender, so that every user that receives them can measure the end-to-end
+ * delivery latency, local or remote; this only works because all the users of a load run live
+ * in the same JVM.</p>
+ * <p>The methods that change the state of the user are meant to be called by a single thread,
+ * while the replies are processed by the threads of the CometD client.</p>
+ */
+public class LoadUser {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadUser.class);
+
+    private final ClientSessionChannel.MessageListener chatListener = this::onChat;
+    private final ClientSessionChannel.MessageListener membersListener = (channel, message) -> {};
+    private final String userName;
+    private final String userId;
+    private final int node;
+    private final BayeuxClient client;
+    private final LoadStats stats;
+    private volatile CompletableFuture<RoomInfo> join;
+    private volatile long roomId = -1;
+    private volatile long joinNanos;
+    private volatile boolean joined;
+
+    /**
+     * @param userName the user name, in the form {@code id[/membership]}
+     * @param node     the index of the node the client connects to
+     * @param client   the client to use to connect to a node
+     * @param stats    the measurements of the load run
+     */
+    public LoadUser(String userName, int node, BayeuxClient client, LoadStats stats) {
+        this.userName = userName;
+        this.userId = userName.split("/")[0];
+        this.node = node;
+        this.client = client;
+        this.stats = stats;
+        client.getChannel("/service/room/join").addListener((ClientSessionChannel.MessageListener)(channel, message) -> onJoined(message));
+        client.getChannel("/service/status").addListener((ClientSessionChannel.MessageListener)(channel, message) -> onStatus(message));
+        client.getChannel(Channel.META_CONNECT).addListener((ClientSessionChannel.MessageListener)(channel, message) -> {
+            if (!message.isSuccessful()) {
+                stats.failed();
+            }
+        });
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public BayeuxClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return a future completed when the user is logged in
+     */
+    public CompletableFuture<Void> login() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Map<String, Object> fields = Map.of(Message.EXT_FIELD, Map.of("auth", Map.of("user", userName)));
+        client.handshake(fields, reply -> {
+            if (reply.isSuccessful()) {
+                client.getChannel("/service/init").publish(new HashMap<>(), this::onReply);
+                result.complete(null);
+            } else {
+                stats.failed();
+                result.completeExceptionally(new IllegalStateException("Handshake failed for " + userName + ": " + reply));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @param roomName the name of the room to create
+     * @return a future completed with the room created
+     */
+    public CompletableFuture<RoomInfo> createRoom(String roomName) {
+        CompletableFuture<RoomInfo> result = new CompletableFuture<>();
+        ClientSessionChannel channel = client.getChannel("/service/room/create");
+        ClientSessionChannel.MessageListener listener = new ClientSessionChannel.MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel channel, Message message) {
+                Object data = message.getData();
+                if (data instanceof RoomInfo roomInfo && roomName.equals(roomInfo.name())) {
+                    channel.removeListener(this);
+                    result.complete(roomInfo);
+                }
+            }
+        };
+        channel.addListener(listener);
+        channel.publish(Map.of("roomName", roomName), reply -> {
+            if (!reply.isSuccessful()) {
+                channel.removeListener(listener);
+                stats.failed();
+                result.completeExceptionally(new IllegalStateException("Could not create room " + roomName + ": " + reply));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * <p>Leaves the current room, if any, and joins the given room.</p>
+     *
+     * @param roomId the id of the room to join
+     * @return a future completed when the server confirms the join
+     */
+    public CompletableFuture<RoomInfo> join(long roomId) {
+        CompletableFuture<RoomInfo> result = new CompletableFuture<>();
+        client.batch(() -> {
+            leave();
+            this.join = result;
+            this.roomId = roomId;
+            this.joinNanos = System.nanoTime();
+            client.getChannel("/members/" + roomId).subscribe(membersListener, this::onReply);
+            client.getChannel("/chat/" + roomId).subscribe(chatListener, this::onReply);
+            client.getChannel("/service/room/join").publish(Map.of("roomId", roomId), this::onReply);
+        });
+        return result;
+    }
+
+    /**
+     * <p>Leaves the current room, if any.</p>
+     */
+    public void leave() {
+        long roomId = this.roomId;
+        if (roomId < 0) {
+            return;
+        }
+        this.roomId = -1;
+        this.joined = false;
+        client.batch(() -> {
+            client.getChannel("/service/room/leave").publish(Map.of("roomId", roomId), this::onReply);
+            client.getChannel("/members/" + roomId).unsubscribe(membersListener, this::onReply);
+            client.getChannel("/chat/" + roomId).unsubscribe(chatListener, this::onReply);
+        });
+    }
+
+    /**
+     * <p>Chats in the current room, if the user has joined one.</p>
+     *
+     * @param padding the text appended to the send timestamp and node, to control the message size
+     * @return whether the message has been sent
+     */
+    public boolean chat(String padding) {
+        if (!joined) {
+            return false;
+        }
+        Map<String, Object> data = new HashMap<>(4);
+        data.put("userId", userId);
+        data.put("roomId", roomId);
+        data.put("text", System.nanoTime() + " " + node + " " + padding);
+        client.getChannel("/service/chat").publish(data, this::onReply);
+        stats.sent();
+        return true;
+    }
+
+    /**
+     * @return a future completed when the user is logged out
+     */
+    public CompletableFuture<Void> logout() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        leave();
+        client.disconnect(reply -> result.complete(null));
+        return result;
+    }
+
+    private void onJoined(Message message) {
+        if (message.getData() instanceof RoomInfo roomInfo && roomInfo.id() == roomId) {
+            joined = true;
+            stats.joined(joinNanos);
+            CompletableFuture<RoomInfo> join = this.join;
+            if (join != null) {
+                join.complete(roomInfo);
+            }
+        }
+    }
+
+    private void onChat(ClientSessionChannel channel, Message message) {
+        if (message.getData() instanceof ChatInfo chatInfo) {
+            String text = chatInfo.text();
+            int space1 = text.indexOf(' ');
+            int space2 = space1 < 0 ? -1 : text.indexOf(' ', space1 + 1);
+            if (space2 < 0) {
+                return;
+            }
+            try {
+                long sendNanos = Long.parseLong(text, 0, space1, 10);
+                int senderNode = Integer.parseInt(text, space1 + 1, space2, 10);
+                stats.delivered(sendNanos, senderNode != node);
+            } catch (NumberFormatException x) {
+                // Not a message of the load generator.
+            }
+        }
+    }
+
+    private void onStatus(Message message) {
+        stats.failed();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Status for {}: {}", userId, message.getData());
+        }
+    }
+
+    private void onReply(Message reply) {
+        if (!reply.isSuccessful()) {
+            stats.failed();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Failed reply for {}: {}", userId, reply);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo;
+
+import java.text.ParseException;
+import java.util.List;
+
+import org.cometd.bayeux.Message;
+import org.cometd.common.HashMapMessage;
+import org.cometd.common.JSONContext;
+import org.cometd.common.JettyJSONContextClient;
+import org.cometd.demo.model.CompactInfoCodec;
+import org.cometd.demo.model.InfoPool;
+
+/**
+ * Alternative to {@link JSONContextClient} that encodes {@code *Info} objects without class hints,
+ * and parses the messages with the hand-written parser of {@link CompactInfoCodec}.
+ * All the nodes of the cluster must use the same kind of JSON context.
+ */
+public class CompactJSONContextClient extends JettyJSONContextClient implements InfoPool.Owner {
+    private final InfoPool infoPool;
+    private final CompactInfoCodec codec;
+
+    public CompactJSONContextClient() {
+        this(new InfoPool());
+    }
+
+    /**
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public CompactJSONContextClient(InfoPool infoPool) {
+        this.infoPool = infoPool;
+        this.codec = new CompactInfoCodec(infoPool);
+        codec.register(getJSON());
+    }
+
+    @Override
+    public InfoPool getInfoPool() {
+        return infoPool;
+    }
+
+    @Override
+    public List<Message.Mutable> parse(String json) throws ParseException {
+        return CompactJSONContexts.parse(codec, json, HashMapMessage::new);
+    }
+
+    @Override
+    public JSONContext.AsyncParser newAsyncParser() {
+        return CompactJSONContexts.newAsyncParser(codec, HashMapMessage::new);
+    }
+}
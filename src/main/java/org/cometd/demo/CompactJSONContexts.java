@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.cometd.demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.cometd.bayeux.Message;
+import org.cometd.common.JSONContext;
+import org.cometd.demo.model.CompactInfoCodec;
+
+/**
+ * Parses the messages received by {@link CompactJSONContextServer} and {@link CompactJSONContextClient}
+ * with the hand-written parser of {@link CompactInfoCodec}, rather than with the Jetty parser.
+ */
+class CompactJSONContexts {
+    private CompactJSONContexts() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <M extends Message.Mutable> List<M> parse(CompactInfoCodec codec, CharSequence json, Supplier<M> newMessage) throws ParseException {
+        Object result = codec.parse(json, newMessage);
+        // The top level objects are created by the supplier, so they are messages.
+        if (result instanceof Message.Mutable message) {
+            return List.of((M)message);
+        }
+        if (result instanceof Object[] array) {
+            List<M> messages = new ArrayList<>(array.length);
+            for (Object element : array) {
+                if (!(element instanceof Message.Mutable message)) {
+                    throw new ParseException("Invalid message " + element, 0);
+                }
+                messages.add((M)message);
+            }
+            return messages;
+        }
+        throw new ParseException("Invalid messages " + result, 0);
+    }
+
+    static <M extends Message.Mutable> JSONContext.AsyncParser newAsyncParser(CompactInfoCodec codec, Supplier<M> newMessage) {
+        return new JSONContext.AsyncParser() {
+            private byte[] bytes = new byte[1024];
+            private int length;
+
+            @Override
+            public void parse(ByteBuffer buffer) {
+                int remaining = buffer.remaining();
+                if (length + remaining > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + remaining));
+                }
+                buffer.get(bytes, length, remaining);
+                length += remaining;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <R> R complete() {
+                // The JSON is buffered as bytes, as a multi-byte character may be split across buffers.
+                String json = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                length = 0;
+                try {
+                    return (R)CompactJSONContexts.parse(codec, json, newMessage);
+                } catch (ParseException x) {
+                    throw new IllegalArgumentException(x);
+                }
+            }
+        };
+    }
+}
@@ -20,6 +20,7 @@ import org.cometd.demo.model.ChatHistoryInfo;
 import org.cometd.demo.model.ChatHistoryInfoConvertor;
 import org.cometd.demo.model.ChatInfo;
 import org.cometd.demo.model.ChatInfoConvertor;
+import org.cometd.demo.model.InfoPool;
 import org.cometd.demo.model.Membership;
 import org.cometd.demo.model.RoomChatInfo;
 import org.cometd.demo.model.RoomChatInfoConvertor;
@@ -34,13 +35,28 @@ import org.eclipse.jetty.util.ajax.JSONEnumConvertor;
  * Customization of {@link JSONContextServer} to allow transparent replication
  * of {@code *Info} objects across the nodes of the cluster.
  */
-public class JSONContextServer extends JettyJSONContextServer {
+public class JSONContextServer extends JettyJSONContextServer implements InfoPool.Owner {
+    private final InfoPool infoPool;
+
     public JSONContextServer() {
+        this(new InfoPool());
+    }
+
+    /**
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public JSONContextServer(InfoPool infoPool) {
+        this.infoPool = infoPool;
         getJSON().addConvertor(Membership.class, new JSONEnumConvertor(true));
-        getJSON().addConvertor(RoomInfo.class, new RoomInfoConvertor());
-        getJSON().addConvertor(UserInfo.class, new UserInfoConvertor());
+        getJSON().addConvertor(RoomInfo.class, new RoomInfoConvertor(infoPool));
+        getJSON().addConvertor(UserInfo.class, new UserInfoConvertor(infoPool));
         getJSON().addConvertor(ChatInfo.class, new ChatInfoConvertor());
         getJSON().addConvertor(RoomChatInfo.class, new RoomChatInfoConvertor());
         getJSON().addConvertor(ChatHistoryInfo.class, new ChatHistoryInfoConvertor());
     }
+
+    @Override
+    public InfoPool getInfoPool() {
+        return infoPool;
+    }
 }
@@ -19,10 +19,13 @@ package org.cometd.demo;
 import java.util.Map;
 
 import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerChannel;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
+import org.cometd.demo.model.InfoPool;
 import org.cometd.demo.model.Membership;
 import org.cometd.demo.model.UserInfo;
+import org.cometd.demo.service.RoomsService;
 import org.cometd.demo.service.UsersService;
 import org.cometd.oort.Oort;
 import org.cometd.server.DefaultSecurityPolicy;
@@ -32,9 +35,15 @@ import org.cometd.server.DefaultSecurityPolicy;
  */
 public class SecurityPolicy extends DefaultSecurityPolicy {
     private final Oort oort;
+    private final InfoPool infoPool;
 
-    public SecurityPolicy(Oort oort) {
+    /**
+     * @param oort     the Oort instance
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public SecurityPolicy(Oort oort, InfoPool infoPool) {
         this.oort = oort;
+        this.infoPool = infoPool;
     }
 
     @Override
@@ -53,6 +62,15 @@ public class SecurityPolicy extends DefaultSecurityPolicy {
         return authenticate(session, message);
     }
 
+    @Override
+    public boolean canSubscribe(BayeuxServer server, ServerSession session, ServerChannel channel, ServerMessage message) {
+        // Remote users are subscribed to the room list of their membership tier by the server
+        if (!session.isLocalSession() && RoomsService.isRoomsChannel(channel.getId())) {
+            return false;
+        }
+        return super.canSubscribe(server, session, channel, message);
+    }
+
     private boolean authenticate(ServerSession session, ServerMessage message) {
         Map<String, Object> ext = message.getExt();
         if (ext != null) {
@@ -67,7 +85,7 @@ public class SecurityPolicy extends DefaultSecurityPolicy {
                     if (parts.length > 1) {
                         membership = Membership.valueOf(parts[1].toUpperCase());
                     }
-                    UserInfo userInfo = new UserInfo(userId, membership);
+                    UserInfo userInfo = infoPool.user(userId, membership);
                     session.setAttribute(UsersService.USER_INFO, userInfo);
                     return true;
                 }
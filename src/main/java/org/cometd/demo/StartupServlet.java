@@ -25,10 +25,13 @@ import jakarta.servlet.ServletResponse;
 import jakarta.servlet.UnavailableException;
 import org.cometd.annotation.server.ServerAnnotationProcessor;
 import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.demo.model.InfoPool;
+import org.cometd.demo.service.BinaryLinkService;
 import org.cometd.demo.service.ChatHistoryArchiveService;
 import org.cometd.demo.service.ChatHistoryRequestService;
 import org.cometd.demo.service.ChatHistoryService;
 import org.cometd.demo.service.ChatService;
+import org.cometd.demo.service.MetricsService;
 import org.cometd.demo.service.RoomCreateService;
 import org.cometd.demo.service.RoomEditService;
 import org.cometd.demo.service.RoomJoinService;
@@ -37,8 +40,10 @@ import org.cometd.demo.service.RoomMembersService;
 import org.cometd.demo.service.RoomsService;
 import org.cometd.demo.service.UserCountService;
 import org.cometd.demo.service.UsersService;
+import org.cometd.demo.service.WordFilterService;
 import org.cometd.oort.Oort;
 import org.cometd.oort.Seti;
+import org.cometd.server.BayeuxServerImpl;
 
 /**
  * Startup servlet that instantiates and initializes services.
@@ -53,7 +58,12 @@ public class StartupServlet extends GenericServlet {
 
             Node node = new Node(getInitParameter("node"));
 
-            bayeuxServer.setSecurityPolicy(new SecurityPolicy(oort));
+            // The canonical users and rooms of this node are owned by the JSON context
+            // that parses the messages received from browsers and from other nodes.
+            InfoPool infoPool = ((BayeuxServerImpl)bayeuxServer).getJSONContext() instanceof InfoPool.Owner owner ?
+                    owner.getInfoPool() : new InfoPool();
+
+            bayeuxServer.setSecurityPolicy(new SecurityPolicy(oort, infoPool));
 
             // Services here are instantiated using constructor dependency injection instead of @Inject.
             // This guarantees that services are initialized in the right order, avoiding that a
@@ -61,35 +71,58 @@ public class StartupServlet extends GenericServlet {
             // Instead of using CometD's annotation servlet (that can only instantiate parameterless services)
             // we create and use a ServerAnnotationProcessor manually.
             ServerAnnotationProcessor processor = new ServerAnnotationProcessor(bayeuxServer, oort, seti);
+            if (Boolean.parseBoolean(getInitParameter("oortBinary"))) {
+                processor.process(new BinaryLinkService(oort, infoPool));
+            }
+            MetricsService metricsService = new MetricsService(node.id(), getLongInitParameter("metricsWindow", 10000));
+            processor.process(metricsService);
+            // Made available to MetricsServlet.
+            getServletContext().setAttribute(MetricsService.ATTRIBUTE, metricsService);
             UserCountService userCountService = new UserCountService(oort);
             processor.process(userCountService);
-            UsersService usersService = new UsersService(seti);
+            UsersService usersService = new UsersService(seti, metricsService);
             processor.process(usersService);
-            RoomMembersService membersService = new RoomMembersService(oort, usersService);
+            RoomMembersService membersService = new RoomMembersService(oort, usersService, getIntInitParameter("membersPartitions", 16), getIntInitParameter("membersBatchSize", 1), getLongInitParameter("membersFlushInterval", 0));
             processor.process(membersService);
-            RoomsService roomsService = new RoomsService(oort, node, usersService, membersService);
-            processor.process(roomsService);
-            ChatHistoryService chatHistoryService = new ChatHistoryService(5);
+            ChatHistoryService chatHistoryService = new ChatHistoryService(object -> oort.getJSONContextClient().getGenerator().generate(object), node.id(),
+                    getIntInitParameter("historyMaxEntries", 5), getLongInitParameter("historyMemoryBudget", 0),
+                    getIntInitParameter("historyOffHeapChunkSize", 0),
+                    getInitParameter("historyLogDir"), getIntInitParameter("historyLogPartitions", 16), getIntInitParameter("historyLogSegmentSize", 16 * 1024 * 1024), infoPool);
             processor.process(chatHistoryService);
-            ChatHistoryArchiveService chatHistoryArchiveService = new ChatHistoryArchiveService(oort, roomsService, chatHistoryService);
+            RoomsService roomsService = new RoomsService(oort, node, usersService, membersService, chatHistoryService, getIntInitParameter("roomsPageSize", 50));
+            processor.process(roomsService);
+            ChatHistoryArchiveService chatHistoryArchiveService = new ChatHistoryArchiveService(oort, roomsService, chatHistoryService,
+                    getIntInitParameter("archiveBatchSize", 1), getLongInitParameter("archiveBatchDelay", 0), metricsService);
             processor.process(chatHistoryArchiveService);
-            ChatHistoryRequestService chatHistoryRequestService = new ChatHistoryRequestService(oort, usersService, roomsService, chatHistoryService);
+            ChatHistoryRequestService chatHistoryRequestService = new ChatHistoryRequestService(oort, usersService, roomsService, membersService, chatHistoryService, getIntInitParameter("historyPageSize", 20), metricsService);
             processor.process(chatHistoryRequestService);
-            RoomJoinService roomJoinService = new RoomJoinService(usersService, roomsService, membersService, chatHistoryRequestService);
+            RoomJoinService roomJoinService = new RoomJoinService(usersService, roomsService, membersService, chatHistoryRequestService, metricsService);
             processor.process(roomJoinService);
             RoomLeaveService roomLeaveService = new RoomLeaveService(usersService, roomsService, membersService);
             processor.process(roomLeaveService);
-            RoomEditService roomEditService = new RoomEditService(oort, usersService, roomsService, membersService);
+            RoomEditService roomEditService = new RoomEditService(oort, usersService, roomsService, membersService, infoPool);
             processor.process(roomEditService);
-            RoomCreateService roomCreateService = new RoomCreateService(oort, node, roomsService);
+            RoomCreateService roomCreateService = new RoomCreateService(oort, node, roomsService, metricsService, infoPool, getInitParameter("roomIdsFile"));
             processor.process(roomCreateService);
-            ChatService chatService = new ChatService(oort, usersService, roomsService, chatHistoryArchiveService);
+            WordFilterService wordFilterService = new WordFilterService(getInitParameter("badWordsFile"), getLongInitParameter("badWordsScanPeriod", 5000));
+            processor.process(wordFilterService);
+            ChatService chatService = new ChatService(oort, usersService, roomsService, chatHistoryArchiveService, wordFilterService, metricsService);
             processor.process(chatService);
         } catch (IOException x) {
             throw new ServletException(x);
         }
     }
 
+    private int getIntInitParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private long getLongInitParameter(String name, long defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
     @Override
     public void service(ServletRequest req, ServletResponse res) throws ServletException {
         throw new UnavailableException("Configuration Servlet");
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * <p>An immutable, multi-pattern word replacement engine.</p>
+ * <p>The dictionary words are compiled once into an Aho-Corasick automaton, so that
+ * {@link #filter(String)} scans the text in a single pass, independently of the number
+ * of words in the dictionary.</p>
+ * <p>A word matches only if it is delimited by word boundaries, with the same semantic
+ * of the {@code \b} regular expression construct.
+ * When nothing matches, the text is returned as-is, without any allocation.</p>
+ */
+public class WordFilter {
+    private static final WordFilter EMPTY = new WordFilter(Map.of());
+
+    // State s has its transitions in labels/targets[offsets[s]..offsets[s + 1]), sorted by label.
+    private final int[] offsets;
+    private final char[] labels;
+    private final int[] targets;
+    private final int[] failures;
+    // The index of the longest word that ends at a state, or -1.
+    private final int[] outputs;
+    // The next state along the failure chain that has an output, or -1.
+    private final int[] outputLinks;
+    private final int[] lengths;
+    private final String[] replacements;
+
+    /**
+     * @param dictionary a map from word to its replacement; empty replacements
+     *                   are substituted by as many {@code *} as the word length
+     */
+    public WordFilter(Map<String, String> dictionary) {
+        List<String> words = new ArrayList<>();
+        List<String> substitutes = new ArrayList<>();
+        for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+            String word = entry.getKey();
+            if (word == null || word.isEmpty()) {
+                continue;
+            }
+            String replacement = entry.getValue();
+            if (replacement == null || replacement.isEmpty()) {
+                replacement = "*".repeat(word.length());
+            }
+            words.add(word);
+            substitutes.add(replacement);
+        }
+
+        // Build the trie.
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> terminals = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        terminals.add(-1);
+        for (int w = 0; w < words.size(); ++w) {
+            String word = words.get(w);
+            int state = 0;
+            for (int i = 0; i < word.length(); ++i) {
+                Integer next = trie.get(state).get(word.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    terminals.add(-1);
+                    trie.get(state).put(word.charAt(i), next);
+                }
+                state = next;
+            }
+            terminals.set(state, w);
+        }
+
+        // Compute the failure and output links breadth first.
+        int states = trie.size();
+        failures = new int[states];
+        outputs = new int[states];
+        outputLinks = new int[states];
+        outputLinks[0] = -1;
+        for (int s = 0; s < states; ++s) {
+            outputs[s] = terminals.get(s);
+        }
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : trie.get(0).values()) {
+            failures[child] = 0;
+            outputLinks[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+                char c = edge.getKey();
+                int child = edge.getValue();
+                int failure = failures[state];
+                while (failure > 0 && !trie.get(failure).containsKey(c)) {
+                    failure = failures[failure];
+                }
+                Integer target = trie.get(failure).get(c);
+                failures[child] = target == null ? 0 : target;
+                int link = failures[child];
+                outputLinks[child] = outputs[link] >= 0 ? link : outputLinks[link];
+                queue.add(child);
+            }
+        }
+
+        // Flatten the transitions into sorted arrays.
+        offsets = new int[states + 1];
+        int edges = 0;
+        for (int s = 0; s < states; ++s) {
+            offsets[s] = edges;
+            edges += trie.get(s).size();
+        }
+        offsets[states] = edges;
+        labels = new char[edges];
+        targets = new int[edges];
+        for (int s = 0; s < states; ++s) {
+            int index = offsets[s];
+            for (Map.Entry<Character, Integer> edge : trie.get(s).entrySet()) {
+                labels[index] = edge.getKey();
+                targets[index] = edge.getValue();
+                ++index;
+            }
+        }
+
+        lengths = new int[words.size()];
+        replacements = new String[words.size()];
+        for (int w = 0; w < words.size(); ++w) {
+            lengths[w] = words.get(w).length();
+            replacements[w] = substitutes.get(w);
+        }
+    }
+
+    /**
+     * @return a filter that never replaces anything
+     */
+    public static WordFilter empty() {
+        return EMPTY;
+    }
+
+    /**
+     * <p>Loads a dictionary in {@link Properties} format, where keys are the words
+     * to replace and values their replacements.</p>
+     *
+     * @param reader the dictionary source
+     * @return a new filter for the dictionary
+     * @throws IOException if the dictionary cannot be read
+     */
+    public static WordFilter load(Reader reader) throws IOException {
+        Properties properties = new Properties();
+        properties.load(reader);
+        Map<String, String> dictionary = new LinkedHashMap<>();
+        for (String word : properties.stringPropertyNames()) {
+            dictionary.put(word.trim(), properties.getProperty(word).trim());
+        }
+        return new WordFilter(dictionary);
+    }
+
+    /**
+     * @return the number of words in the dictionary
+     */
+    public int size() {
+        return replacements.length;
+    }
+
+    /**
+     * <p>Replaces the dictionary words found in the given text.</p>
+     * <p>Matches are reported in order of their end position; a match that overlaps
+     * a previous replacement is skipped.</p>
+     *
+     * @param text the text to filter
+     * @return the filtered text, or the same {@code text} instance if nothing was replaced
+     */
+    public String filter(String text) {
+        if (text == null || replacements.length == 0) {
+            return text;
+        }
+        int length = text.length();
+        StringBuilder builder = null;
+        int copied = 0;
+        int state = 0;
+        for (int i = 0; i < length; ++i) {
+            state = next(state, text.charAt(i));
+            int match = outputs[state] >= 0 ? state : outputLinks[state];
+            while (match >= 0) {
+                int word = outputs[match];
+                int start = i + 1 - lengths[word];
+                if (start >= copied && isBoundary(text, start) && isBoundary(text, i + 1)) {
+                    if (builder == null) {
+                        builder = new StringBuilder(length);
+                    }
+                    builder.append(text, copied, start).append(replacements[word]);
+                    copied = i + 1;
+                    break;
+                }
+                match = outputLinks[match];
+            }
+        }
+        if (builder == null) {
+            return text;
+        }
+        return builder.append(text, copied, length).toString();
+    }
+
+    private int next(int state, char c) {
+        while (true) {
+            int low = offsets[state];
+            int high = offsets[state + 1] - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char label = labels[middle];
+                if (label < c) {
+                    low = middle + 1;
+                } else if (label > c) {
+                    high = middle - 1;
+                } else {
+                    return targets[middle];
+                }
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = failures[state];
+        }
+    }
+
+    private static boolean isBoundary(String text, int index) {
+        boolean before = index > 0 && isWordChar(text.charAt(index - 1));
+        boolean after = index < text.length() && isWordChar(text.charAt(index));
+        return before != after;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+}
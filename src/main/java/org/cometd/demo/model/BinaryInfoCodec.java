@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.model;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * <p>{@link BinaryInfoCodec} encodes message data containing {@code *Info} objects to a compact binary form,
+ * to be exchanged between nodes.</p>
+ * <p>Each value is a tag byte followed by the value bytes; integers are variable length, strings are
+ * prefixed by their length in bytes, and maps and arrays are prefixed by their number of elements.
+ * The {@code *Info} objects have their own tags, and their fields are encoded in a fixed order without
+ * names; the memberships are encoded as their ordinal.</p>
+ * <p>The decoded users and rooms are canonicalized via the {@link InfoPool} of the node.</p>
+ * <p>Only the types produced by parsing JSON and the {@code *Info} objects are supported;
+ * {@link #encode(Object)} returns null for data containing other types, that must be sent as JSON.
+ * In particular, {@link JSON.Literal}s are already encoded JSON, so they are sent as they are rather
+ * than wrapped in the binary form.</p>
+ */
+public class BinaryInfoCodec {
+    private static final byte VERSION = 1;
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte MAP = 6;
+    private static final byte ARRAY = 7;
+    private static final byte USER = 8;
+    private static final byte ROOM = 9;
+    private static final byte CHAT = 10;
+    private static final byte ROOM_CHAT = 11;
+    private static final byte CHAT_HISTORY = 12;
+
+    private BinaryInfoCodec() {
+    }
+
+    /**
+     * @param data the message data
+     * @return the encoded bytes, or null if the data contains values that cannot be encoded
+     */
+    public static byte[] encode(Object data) {
+        Encoder encoder = new Encoder();
+        encoder.writeByte(VERSION);
+        if (!encoder.writeValue(data)) {
+            return null;
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * @param bytes    the encoded bytes
+     * @param infoPool the pool of the canonical users and rooms of the node
+     * @return the decoded message data
+     * @throws IllegalArgumentException if the bytes are not a valid encoding
+     */
+    public static Object decode(byte[] bytes, InfoPool infoPool) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+            Object result = readValue(buffer, infoPool);
+            if (buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes " + buffer.remaining());
+            }
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException x) {
+            throw new IllegalArgumentException("Truncated data", x);
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer, InfoPool infoPool) {
+        byte tag = buffer.get();
+        return switch (tag) {
+            case NULL -> null;
+            case TRUE -> Boolean.TRUE;
+            case FALSE -> Boolean.FALSE;
+            case LONG -> readLong(buffer);
+            case DOUBLE -> buffer.getDouble();
+            case STRING -> readString(buffer);
+            case MAP -> {
+                int size = readLength(buffer);
+                Map<String, Object> map = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; ++i) {
+                    String key = readString(buffer);
+                    map.put(key, readValue(buffer, infoPool));
+                }
+                yield map;
+            }
+            case ARRAY -> {
+                // Arrays are decoded like the JSON parser does.
+                Object[] array = new Object[readLength(buffer)];
+                for (int i = 0; i < array.length; ++i) {
+                    array[i] = readValue(buffer, infoPool);
+                }
+                yield array;
+            }
+            case USER -> readUserInfo(buffer, infoPool);
+            case ROOM -> readRoomInfo(buffer, infoPool);
+            case CHAT -> readChatInfo(buffer, infoPool);
+            case ROOM_CHAT -> new RoomChatInfo(readRoomInfo(buffer, infoPool), readChatInfo(buffer, infoPool));
+            case CHAT_HISTORY -> {
+                RoomInfo roomInfo = readRoomInfo(buffer, infoPool);
+                int maxEntries = readMaxEntries(buffer);
+                long cursor = readLong(buffer);
+                int size = readLength(buffer);
+                ChatHistoryInfo chatHistoryInfo = new ChatHistoryInfo(roomInfo, maxEntries, cursor);
+                for (int i = 0; i < size; ++i) {
+                    chatHistoryInfo.add(readChatInfo(buffer, infoPool));
+                }
+                yield chatHistoryInfo;
+            }
+            default -> throw new IllegalArgumentException("Unknown tag " + tag);
+        };
+    }
+
+    private static UserInfo readUserInfo(ByteBuffer buffer, InfoPool infoPool) {
+        String id = readString(buffer);
+        return infoPool.user(id, readMembership(buffer));
+    }
+
+    private static RoomInfo readRoomInfo(ByteBuffer buffer, InfoPool infoPool) {
+        long id = readLong(buffer);
+        String name = readString(buffer);
+        return infoPool.room(id, name, readMembership(buffer));
+    }
+
+    private static ChatInfo readChatInfo(ByteBuffer buffer, InfoPool infoPool) {
+        UserInfo userInfo = readUserInfo(buffer, infoPool);
+        return new ChatInfo(userInfo, readString(buffer));
+    }
+
+    private static Membership readMembership(ByteBuffer buffer) {
+        return Membership.values()[buffer.get()];
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readLength(buffer);
+        String result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    private static int readLength(ByteBuffer buffer) {
+        long length = readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            // Every element takes at least one byte.
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return (int)length;
+    }
+
+    private static int readMaxEntries(ByteBuffer buffer) {
+        // Unlike lengths, the max entries are not bounded by the remaining bytes.
+        long maxEntries = readVarLong(buffer);
+        if (maxEntries < 0 || maxEntries > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid max entries " + maxEntries);
+        }
+        return (int)maxEntries;
+    }
+
+    private static long readLong(ByteBuffer buffer) {
+        long zigzag = readVarLong(buffer);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Invalid variable length integer");
+    }
+
+    private static class Encoder {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        private boolean writeValue(Object value) {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof String string) {
+                writeByte(STRING);
+                writeString(string);
+            } else if (value instanceof Boolean bool) {
+                writeByte(bool ? TRUE : FALSE);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeByte(LONG);
+                writeLong(((Number)value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                writeByte(DOUBLE);
+                writeDouble(((Number)value).doubleValue());
+            } else if (value instanceof UserInfo userInfo) {
+                writeByte(USER);
+                writeUserInfo(userInfo);
+            } else if (value instanceof RoomInfo roomInfo) {
+                writeByte(ROOM);
+                writeRoomInfo(roomInfo);
+            } else if (value instanceof ChatInfo chatInfo) {
+                writeByte(CHAT);
+                writeChatInfo(chatInfo);
+            } else if (value instanceof RoomChatInfo roomChatInfo) {
+                writeByte(ROOM_CHAT);
+                writeRoomInfo(roomChatInfo.roomInfo());
+                writeChatInfo(roomChatInfo.chatInfo());
+            } else if (value instanceof ChatHistoryInfo chatHistoryInfo) {
+                ChatHistoryInfo.Chats chats = chatHistoryInfo.getChats(Long.MAX_VALUE, Integer.MAX_VALUE);
+                writeByte(CHAT_HISTORY);
+                writeRoomInfo(chatHistoryInfo.getRoomInfo());
+                writeVarLong(chatHistoryInfo.getMaxEntries());
+                writeLong(chats.first());
+                writeVarLong(chats.chatInfos().size());
+                for (ChatInfo chatInfo : chats.chatInfos()) {
+                    writeChatInfo(chatInfo);
+                }
+            } else if (value instanceof Map<?, ?> map) {
+                writeByte(MAP);
+                writeVarLong(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (!(entry.getKey() instanceof String key)) {
+                        return false;
+                    }
+                    writeString(key);
+                    if (!writeValue(entry.getValue())) {
+                        return false;
+                    }
+                }
+            } else if (value instanceof Object[] array) {
+                return writeArray(Arrays.asList(array));
+            } else if (value instanceof Collection<?> collection) {
+                return writeArray(collection);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private boolean writeArray(Collection<?> collection) {
+            writeByte(ARRAY);
+            writeVarLong(collection.size());
+            for (Object element : collection) {
+                if (!writeValue(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeUserInfo(UserInfo userInfo) {
+            writeString(userInfo.id());
+            writeByte((byte)userInfo.membership().ordinal());
+        }
+
+        private void writeRoomInfo(RoomInfo roomInfo) {
+            writeLong(roomInfo.id());
+            writeString(roomInfo.name());
+            writeByte((byte)roomInfo.membership().ordinal());
+        }
+
+        private void writeChatInfo(ChatInfo chatInfo) {
+            writeUserInfo(chatInfo.userInfo());
+            writeString(chatInfo.text());
+        }
+
+        private void writeString(String string) {
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        private void writeLong(long value) {
+            // Zigzag encoding, so that small negative values are short too.
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((byte)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((byte)value);
+        }
+
+        private void writeDouble(double value) {
+            ensureCapacity(Double.BYTES);
+            ByteBuffer.wrap(bytes, length, Double.BYTES).putDouble(value);
+            length += Double.BYTES;
+        }
+
+        private void writeByte(byte value) {
+            ensureCapacity(1);
+            bytes[length++] = value;
+        }
+
+        private void ensureCapacity(int needed) {
+            if (length + needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
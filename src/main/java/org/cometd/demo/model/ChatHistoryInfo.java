@@ -17,17 +17,45 @@
 package org.cometd.demo.model;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * <p>The most recent chat messages of a room, stored in a fixed capacity ring buffer.</p>
+ * <p>There is a single writer at a time: callers that add chat messages from different threads
+ * must serialize the additions, as {@code ChatHistoryService} does per room. The writer stores
+ * the chat message in the slot for the next sequence, and then publishes the sequence;
+ * readers never block, and only see published chat messages.</p>
+ * <p>Sequences are the indexes of the chat messages in the whole history of the room, so they
+ * are also used as cursors to page through the history.</p>
+ * <p>Each slot records the sequence of its chat message, so that readers detect slots
+ * that writers overwrite while the readers are copying them, and return only the most
+ * recent contiguous chat messages that were not overwritten.</p>
+ */
 public class ChatHistoryInfo {
-    private final List<ChatInfo> chatInfos = new LinkedList<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicReferenceArray<Slot> slots;
     private final RoomInfo roomInfo;
     private final int maxEntries;
+    private final long first;
 
     public ChatHistoryInfo(RoomInfo roomInfo, int maxEntries) {
+        this(roomInfo, maxEntries, 0);
+    }
+
+    /**
+     * @param roomInfo   the room
+     * @param maxEntries the max number of chat messages
+     * @param first      the sequence of the first chat message that will be added
+     */
+    public ChatHistoryInfo(RoomInfo roomInfo, int maxEntries, long first) {
         this.roomInfo = roomInfo;
         this.maxEntries = maxEntries;
+        this.first = first;
+        this.slots = new AtomicReferenceArray<>(Math.max(0, maxEntries));
+        this.published.set(first);
     }
 
     public RoomInfo getRoomInfo() {
@@ -38,20 +66,108 @@ public class ChatHistoryInfo {
         return maxEntries;
     }
 
+    /**
+     * @return the sequence of the next chat message, that changes every time a chat message is added
+     */
+    public long getSequence() {
+        return published.get();
+    }
+
+    /**
+     * @return the estimated memory retained by the chat messages, in bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
     public List<ChatInfo> getChatInfos() {
-        synchronized (this) {
-            return new ArrayList<>(chatInfos);
+        return getChats(Long.MAX_VALUE, Integer.MAX_VALUE).chatInfos();
+    }
+
+    /**
+     * @param before the sequence before which chat messages are returned
+     * @param limit  the max number of chat messages to return
+     * @return the most recent chat messages before the given sequence that are still available
+     */
+    public Chats getChats(long before, int limit) {
+        long published = this.published.get();
+        long end = Math.min(before, published);
+        // Slots before published - capacity have certainly been overwritten.
+        long start = Math.max(Math.max(first, published - slots.length()), end - limit);
+        if (start >= end) {
+            return new Chats(List.of(), Math.max(first, end));
         }
+        List<ChatInfo> result = new ArrayList<>((int)(end - start));
+        long cursor = start;
+        for (long sequence = start; sequence < end; ++sequence) {
+            Slot slot = slots.get(index(sequence));
+            if (slot.sequence() != sequence) {
+                // Overwritten by a more recent chat message,
+                // so are all the previous ones already copied.
+                result.clear();
+                cursor = sequence + 1;
+            } else {
+                result.add(slot.chatInfo());
+            }
+        }
+        return new Chats(result, cursor);
     }
 
+    /**
+     * <p>Adds a chat message; must not be called concurrently.</p>
+     *
+     * @param chatInfo the chat message to add
+     * @return the chat message evicted to make room for the given one, or null
+     */
     public ChatInfo add(ChatInfo chatInfo) {
-        synchronized (this) {
-            ChatInfo result = null;
-            if (chatInfos.size() == maxEntries) {
-                result = chatInfos.remove(0);
-            }
-            chatInfos.add(chatInfo);
-            return result;
+        int capacity = slots.length();
+        if (capacity == 0) {
+            // Nothing is retained, but the sequence still advances.
+            published.set(published.get() + 1);
+            return chatInfo;
         }
+        long sequence = published.get();
+        int index = index(sequence);
+        Slot evicted = slots.get(index);
+        slots.set(index, new Slot(sequence, chatInfo));
+        // Publish only after the slot has been stored.
+        published.set(sequence + 1);
+        ChatInfo result = evicted == null ? null : evicted.chatInfo();
+        bytes.addAndGet(sizeOf(chatInfo) - sizeOf(result));
+        return result;
+    }
+
+    /**
+     * @param chatInfo the chat message, or null
+     * @return the estimated memory retained by the given chat message in a ring buffer, in bytes
+     */
+    public static long sizeOf(ChatInfo chatInfo) {
+        if (chatInfo == null) {
+            return 0;
+        }
+        // Slot and ChatInfo objects, plus the text; the UserInfo is
+        // shared by all the chat messages of the user, see InfoPool.
+        return 24 + 16 + sizeOf(chatInfo.text());
+    }
+
+    private static long sizeOf(String string) {
+        // String object and its byte array, assuming the worst case of 2 bytes per char.
+        return string == null ? 0 : 24 + 16 + 2L * string.length();
+    }
+
+    private int index(long sequence) {
+        return (int)(sequence % slots.length());
+    }
+
+    /**
+     * @param chatInfos the chat messages, in sequence order
+     * @param first     the sequence of the first chat message
+     */
+    public record Chats(List<ChatInfo> chatInfos, long first)
+    {
+    }
+
+    private record Slot(long sequence, ChatInfo chatInfo)
+    {
     }
 }
@@ -27,7 +27,9 @@ public class ChatHistoryInfoConvertor implements JSON.Convertor {
         out.addClass(ChatHistoryInfo.class);
         out.add("room", chatHistoryInfo.getRoomInfo());
         out.add("maxEntries", chatHistoryInfo.getMaxEntries());
-        out.add("chats", chatHistoryInfo.getChatInfos());
+        ChatHistoryInfo.Chats chats = chatHistoryInfo.getChats(Long.MAX_VALUE, Integer.MAX_VALUE);
+        out.add("chats", chats.chatInfos());
+        out.add("cursor", chats.first());
     }
 
     @Override
@@ -35,7 +37,8 @@ public class ChatHistoryInfoConvertor implements JSON.Convertor {
         RoomInfo roomInfo = (RoomInfo)object.get("room");
         int maxEntries = ((Number)object.get("maxEntries")).intValue();
         Object[] chatInfos = (Object[])object.get("chats");
-        ChatHistoryInfo result = new ChatHistoryInfo(roomInfo, maxEntries);
+        Number cursor = (Number)object.get("cursor");
+        ChatHistoryInfo result = new ChatHistoryInfo(roomInfo, maxEntries, cursor == null ? 0 : cursor.longValue());
         for (Object chatInfo : chatInfos) {
             result.add((ChatInfo)chatInfo);
         }
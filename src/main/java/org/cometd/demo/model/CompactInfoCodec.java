@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.model;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.ajax.JSONEnumConvertor;
+
+/**
+ * <p>{@link CompactInfoCodec} encodes the {@code *Info} objects to JSON with a one letter
+ * type tag, rather than with the fully qualified class hint.</p>
+ * <p>Memberships are encoded as plain strings rather than as nested objects, and the other field
+ * names are the same of the hinted convertors, so that browsers read the same fields:</p>
+ * <pre>
+ * UserInfo        {"@t":"u","id":"user","membership":"GOLD"}
+ * RoomInfo        {"@t":"r","id":1,"name":"room","membership":"BRONZE"}
+ * ChatInfo        {"@t":"c","user":UserInfo,"text":"hello"}
+ * RoomChatInfo    {"@t":"rc","room":RoomInfo,"chat":ChatInfo}
+ * ChatHistoryInfo {"@t":"h","room":RoomInfo,"maxEntries":5,"chats":[ChatInfo,...],"cursor":0}
+ * </pre>
+ * <p>Decoding is performed by a hand-written parser, see {@link #parse(CharSequence, Supplier)}, in a
+ * single pass over the characters: when the first field of an object is the type tag, the fields that
+ * follow are read directly into the corresponding {@code *Info} object, without building a map first;
+ * any other object, whatever its fields, is parsed as a map, like the Jetty parser does.
+ * The decoded users and rooms are canonicalized via the {@link InfoPool} of the node.</p>
+ * <p>Objects with class hints, such as those of the resource files, are still decoded by the Jetty
+ * parser via the convertors registered by {@link #register(JSON)}.</p>
+ */
+public class CompactInfoCodec {
+    private static final String TYPE = "@t";
+    private static final String USER_TYPE = "u";
+    private static final String ROOM_TYPE = "r";
+    private static final String CHAT_TYPE = "c";
+    private static final String ROOM_CHAT_TYPE = "rc";
+    private static final String CHAT_HISTORY_TYPE = "h";
+    private static final String ID = "id";
+    private static final String NAME = "name";
+    private static final String MEMBERSHIP = "membership";
+    private static final String USER = "user";
+    private static final String TEXT = "text";
+    private static final String ROOM = "room";
+    private static final String CHAT = "chat";
+    private static final String CHATS = "chats";
+    private static final String CURSOR = "cursor";
+    private static final String MAX_ENTRIES = "maxEntries";
+
+    private final InfoPool infoPool;
+
+    /**
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public CompactInfoCodec(InfoPool infoPool) {
+        this.infoPool = infoPool;
+    }
+
+    /**
+     * @param json the JSON instance where to register the compact convertors
+     */
+    public void register(JSON json) {
+        json.addConvertor(Membership.class, new JSONEnumConvertor(true));
+        json.addConvertor(UserInfo.class, new UserInfoCompactConvertor());
+        json.addConvertor(RoomInfo.class, new RoomInfoCompactConvertor());
+        json.addConvertor(ChatInfo.class, new ChatInfoCompactConvertor());
+        json.addConvertor(RoomChatInfo.class, new RoomChatInfoCompactConvertor());
+        json.addConvertor(ChatHistoryInfo.class, new ChatHistoryInfoCompactConvertor());
+    }
+
+    /**
+     * <p>Parses the given JSON, decoding the tagged objects to the corresponding {@code *Info} objects.</p>
+     * <p>Arrays are parsed as {@code Object[]}, integer numbers as {@link Long} and the other numbers as
+     * {@link Double}, like the Jetty parser does.</p>
+     *
+     * @param json        the JSON to parse
+     * @param rootFactory the factory of the maps of the top level objects, and of the objects of a top
+     *                    level array, for example Bayeux messages
+     * @return the parsed value
+     * @throws ParseException if the JSON is not valid
+     */
+    public Object parse(CharSequence json, Supplier<? extends Map<String, Object>> rootFactory) throws ParseException {
+        Parser parser = new Parser(json, rootFactory);
+        Object result = parser.parseValue(true);
+        parser.skipWhitespace();
+        if (parser.index < json.length()) {
+            throw new ParseException("Trailing characters", parser.index);
+        }
+        return result;
+    }
+
+    private static boolean isType(String type) {
+        return switch (type) {
+            case USER_TYPE, ROOM_TYPE, CHAT_TYPE, ROOM_CHAT_TYPE, CHAT_HISTORY_TYPE -> true;
+            default -> false;
+        };
+    }
+
+    private Object decode(String type, Fields fields) {
+        return switch (type) {
+            case USER_TYPE -> infoPool.user((String)fields.id, Membership.valueOf((String)fields.membership));
+            case ROOM_TYPE -> infoPool.room(((Number)fields.id).longValue(), (String)fields.name, Membership.valueOf((String)fields.membership));
+            case CHAT_TYPE -> new ChatInfo((UserInfo)fields.user, (String)fields.text);
+            case ROOM_CHAT_TYPE -> new RoomChatInfo((RoomInfo)fields.room, (ChatInfo)fields.chat);
+            case CHAT_HISTORY_TYPE -> chatHistoryInfo((RoomInfo)fields.room, ((Number)fields.maxEntries).intValue(), fields.chats, (Number)fields.cursor);
+            default -> throw new IllegalArgumentException(type);
+        };
+    }
+
+    private static Object chatHistoryInfo(RoomInfo roomInfo, int maxEntries, Object chats, Number cursor) {
+        ChatHistoryInfo result = new ChatHistoryInfo(roomInfo, maxEntries, cursor == null ? 0 : cursor.longValue());
+        for (Object chatInfo : (Object[])chats) {
+            result.add((ChatInfo)chatInfo);
+        }
+        return result;
+    }
+
+    /**
+     * <p>The fields of a tagged object, read before the object is decoded.</p>
+     */
+    private static class Fields {
+        private Object id;
+        private Object name;
+        private Object membership;
+        private Object user;
+        private Object text;
+        private Object room;
+        private Object chat;
+        private Object chats;
+        private Object cursor;
+        private Object maxEntries;
+
+        private void set(String field, Object value) {
+            switch (field) {
+                case ID -> id = value;
+                case NAME -> name = value;
+                case MEMBERSHIP -> membership = value;
+                case USER -> user = value;
+                case TEXT -> text = value;
+                case ROOM -> room = value;
+                case CHAT -> chat = value;
+                case CHATS -> chats = value;
+                case CURSOR -> cursor = value;
+                case MAX_ENTRIES -> maxEntries = value;
+                default -> {
+                    // Other fields are ignored, like the hinted convertors do.
+                }
+            }
+        }
+    }
+
+    private class Parser {
+        private final CharSequence json;
+        private final Supplier<? extends Map<String, Object>> rootFactory;
+        private int index;
+
+        private Parser(CharSequence json, Supplier<? extends Map<String, Object>> rootFactory) {
+            this.json = json;
+            this.rootFactory = rootFactory;
+        }
+
+        private Object parseValue(boolean root) throws ParseException {
+            skipWhitespace();
+            char c = peek();
+            return switch (c) {
+                case '{' -> parseObject(root);
+                // Only the elements of a top level array are top level objects.
+                case '[' -> parseArray(root);
+                case '"' -> parseString();
+                case 't' -> parseLiteral("true", Boolean.TRUE);
+                case 'f' -> parseLiteral("false", Boolean.FALSE);
+                case 'n' -> parseLiteral("null", null);
+                default -> {
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        yield parseNumber();
+                    }
+                    throw new ParseException("Unexpected character '" + c + "'", index);
+                }
+            };
+        }
+
+        private Object parseObject(boolean root) throws ParseException {
+            ++index;
+            skipWhitespace();
+            if (peek() == '}') {
+                ++index;
+                return root ? rootFactory.get() : new HashMap<>();
+            }
+            int begin = index;
+            String field = parseField();
+            Object value = parseValue(false);
+            if (!root && TYPE.equals(field) && value instanceof String type && isType(type)) {
+                // Streaming path: read the fields that follow the type tag, without a map.
+                Fields fields = new Fields();
+                while (nextField()) {
+                    field = parseField();
+                    fields.set(field, parseValue(false));
+                }
+                return decode(type, fields, begin);
+            }
+            Map<String, Object> map = root ? rootFactory.get() : new HashMap<>();
+            map.put(field, value);
+            while (nextField()) {
+                field = parseField();
+                map.put(field, parseValue(false));
+            }
+            if (!root && map.get(TYPE) instanceof String type && isType(type)) {
+                // The type tag is not the first field, for example
+                // because the object has not been written by this codec.
+                Fields fields = new Fields();
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    fields.set(entry.getKey(), entry.getValue());
+                }
+                return decode(type, fields, begin);
+            }
+            return map;
+        }
+
+        private Object decode(String type, Fields fields, int begin) throws ParseException {
+            try {
+                return CompactInfoCodec.this.decode(type, fields);
+            } catch (ClassCastException | NullPointerException | IllegalArgumentException x) {
+                ParseException failure = new ParseException("Invalid object with type tag '" + type + "'", begin);
+                failure.initCause(x);
+                throw failure;
+            }
+        }
+
+        private String parseField() throws ParseException {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw new ParseException("Expected field name", index);
+            }
+            String field = parseString();
+            skipWhitespace();
+            if (peek() != ':') {
+                throw new ParseException("Expected ':'", index);
+            }
+            ++index;
+            return field;
+        }
+
+        /**
+         * @return true if another field follows, false at the end of the object
+         */
+        private boolean nextField() throws ParseException {
+            skipWhitespace();
+            char c = peek();
+            ++index;
+            if (c == ',') {
+                return true;
+            }
+            if (c == '}') {
+                return false;
+            }
+            throw new ParseException("Expected ',' or '}'", index - 1);
+        }
+
+        private Object[] parseArray(boolean root) throws ParseException {
+            ++index;
+            skipWhitespace();
+            if (peek() == ']') {
+                ++index;
+                return new Object[0];
+            }
+            List<Object> list = new ArrayList<>();
+            while (true) {
+                list.add(parseValue(root));
+                skipWhitespace();
+                char c = peek();
+                ++index;
+                if (c == ']') {
+                    return list.toArray();
+                }
+                if (c != ',') {
+                    throw new ParseException("Expected ',' or ']'", index - 1);
+                }
+            }
+        }
+
+        private String parseString() throws ParseException {
+            int begin = ++index;
+            // Fast path for the strings without escapes.
+            while (index < json.length()) {
+                char c = json.charAt(index);
+                if (c == '"') {
+                    return json.subSequence(begin, index++).toString();
+                }
+                if (c == '\\') {
+                    break;
+                }
+                ++index;
+            }
+            StringBuilder builder = new StringBuilder(index - begin + 16);
+            builder.append(json, begin, index);
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                char escape = next();
+                switch (escape) {
+                    case '"', '\\', '/' -> builder.append(escape);
+                    case 'b' -> builder.append('\b');
+                    case 'f' -> builder.append('\f');
+                    case 'n' -> builder.append('\n');
+                    case 'r' -> builder.append('\r');
+                    case 't' -> builder.append('\t');
+                    case 'u' -> {
+                        if (index + 4 > json.length()) {
+                            throw new ParseException("Truncated unicode escape", index);
+                        }
+                        try {
+                            builder.append((char)Integer.parseInt(json, index, index + 4, 16));
+                        } catch (NumberFormatException x) {
+                            throw new ParseException("Invalid unicode escape", index);
+                        }
+                        index += 4;
+                    }
+                    default -> throw new ParseException("Invalid escape '" + escape + "'", index - 1);
+                }
+            }
+        }
+
+        private Number parseNumber() throws ParseException {
+            int begin = index;
+            boolean negative = peek() == '-';
+            if (negative) {
+                ++index;
+            }
+            long value = 0;
+            int digits = 0;
+            while (index < json.length()) {
+                char c = json.charAt(index);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                ++digits;
+                ++index;
+            }
+            boolean decimal = false;
+            while (index < json.length()) {
+                char c = json.charAt(index);
+                if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    decimal = true;
+                    ++index;
+                } else {
+                    break;
+                }
+            }
+            if (digits == 0) {
+                throw new ParseException("Invalid number", begin);
+            }
+            try {
+                // Integers with more than 18 digits may overflow the accumulated value.
+                if (decimal || digits > 18) {
+                    String number = json.subSequence(begin, index).toString();
+                    return decimal ? (Number)Double.parseDouble(number) : (Number)Long.parseLong(number);
+                }
+            } catch (NumberFormatException x) {
+                throw new ParseException("Invalid number", begin);
+            }
+            return negative ? -value : value;
+        }
+
+        private Object parseLiteral(String literal, Object value) throws ParseException {
+            int end = index + literal.length();
+            if (end > json.length() || !literal.contentEquals(json.subSequence(index, end))) {
+                throw new ParseException("Invalid literal", index);
+            }
+            index = end;
+            return value;
+        }
+
+        private void skipWhitespace() {
+            while (index < json.length()) {
+                char c = json.charAt(index);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                ++index;
+            }
+        }
+
+        private char peek() throws ParseException {
+            if (index >= json.length()) {
+                throw new ParseException("Unexpected end of JSON", index);
+            }
+            return json.charAt(index);
+        }
+
+        private char next() throws ParseException {
+            char result = peek();
+            ++index;
+            return result;
+        }
+    }
+
+    private class UserInfoCompactConvertor implements JSON.Convertor {
+        private final UserInfoConvertor hinted = new UserInfoConvertor(infoPool);
+
+        @Override
+        public void toJSON(Object obj, JSON.Output out) {
+            UserInfo userInfo = (UserInfo)obj;
+            out.add(TYPE, USER_TYPE);
+            out.add(ID, userInfo.id());
+            out.add(MEMBERSHIP, userInfo.membership().name());
+        }
+
+        @Override
+        public Object fromJSON(Map object) {
+            // Only objects with class hints are converted by the Jetty parser.
+            return hinted.fromJSON(object);
+        }
+    }
+
+    private class RoomInfoCompactConvertor implements JSON.Convertor {
+        private final RoomInfoConvertor hinted = new RoomInfoConvertor(infoPool);
+
+        @Override
+        public void toJSON(Object obj, JSON.Output out) {
+            RoomInfo roomInfo = (RoomInfo)obj;
+            out.add(TYPE, ROOM_TYPE);
+            out.add(ID, roomInfo.id());
+            out.add(NAME, roomInfo.name());
+            out.add(MEMBERSHIP, roomInfo.membership().name());
+        }
+
+        @Override
+        public Object fromJSON(Map object) {
+            return hinted.fromJSON(object);
+        }
+    }
+
+    private static class ChatInfoCompactConvertor implements JSON.Convertor {
+        private final ChatInfoConvertor hinted = new ChatInfoConvertor();
+
+        @Override
+        public void toJSON(Object obj, JSON.Output out) {
+            ChatInfo chatInfo = (ChatInfo)obj;
+            out.add(TYPE, CHAT_TYPE);
+            out.add(USER, chatInfo.userInfo());
+            out.add(TEXT, chatInfo.text());
+        }
+
+        @Override
+        public Object fromJSON(Map object) {
+            return hinted.fromJSON(object);
+        }
+    }
+
+    private static class RoomChatInfoCompactConvertor implements JSON.Convertor {
+        private final RoomChatInfoConvertor hinted = new RoomChatInfoConvertor();
+
+        @Override
+        public void toJSON(Object obj, JSON.Output out) {
+            RoomChatInfo roomChatInfo = (RoomChatInfo)obj;
+            out.add(TYPE, ROOM_CHAT_TYPE);
+            out.add(ROOM, roomChatInfo.roomInfo());
+            out.add(CHAT, roomChatInfo.chatInfo());
+        }
+
+        @Override
+        public Object fromJSON(Map object) {
+            return hinted.fromJSON(object);
+        }
+    }
+
+    private static class ChatHistoryInfoCompactConvertor implements JSON.Convertor {
+        private final ChatHistoryInfoConvertor hinted = new ChatHistoryInfoConvertor();
+
+        @Override
+        public void toJSON(Object obj, JSON.Output out) {
+            ChatHistoryInfo chatHistoryInfo = (ChatHistoryInfo)obj;
+            out.add(TYPE, CHAT_HISTORY_TYPE);
+            out.add(ROOM, chatHistoryInfo.getRoomInfo());
+            out.add(MAX_ENTRIES, chatHistoryInfo.getMaxEntries());
+            ChatHistoryInfo.Chats chats = chatHistoryInfo.getChats(Long.MAX_VALUE, Integer.MAX_VALUE);
+            out.add(CHATS, chats.chatInfos());
+            out.add(CURSOR, chats.first());
+        }
+
+        @Override
+        public Object fromJSON(Map object) {
+            return hinted.fromJSON(object);
+        }
+    }
+}
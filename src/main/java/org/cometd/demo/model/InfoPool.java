@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>{@link InfoPool} is the pool of the canonical {@link UserInfo} and {@link RoomInfo} instances of a node.</p>
+ * <p>Every message received from clients and from other nodes carries its own copy of the users and rooms
+ * it refers to; the convertors replace these copies with the canonical instances, so that the chat
+ * messages retained by the node share the same user, user id and room name instances.</p>
+ * <p>The pool only holds weak references to the canonical instances, so that users and rooms that are
+ * not referenced anymore are garbage collected.
+ * When a user or a room changes (for example, a room is renamed), the new instance becomes the
+ * canonical one.</p>
+ * <p>Each node owns its pool, created by the JSON context that parses the messages received by the node
+ * (see {@link Owner}), and passed to the convertors, the codecs and the services of the node, so that
+ * nodes running in the same JVM do not share their canonical instances.</p>
+ */
+public class InfoPool {
+    private final Pool<String, UserInfo> users = new Pool<>();
+    private final Pool<Long, RoomInfo> rooms = new Pool<>();
+
+    /**
+     * @param id         the user id
+     * @param membership the user membership
+     * @return the canonical {@link UserInfo} with the given id and membership
+     */
+    public UserInfo user(String id, Membership membership) {
+        UserInfo userInfo = users.get(id);
+        if (userInfo != null && userInfo.membership() == membership) {
+            return userInfo;
+        }
+        return users.put(id, new UserInfo(id, membership));
+    }
+
+    /**
+     * @param userInfo the user
+     * @return the canonical {@link UserInfo} equivalent to the given one
+     */
+    public UserInfo user(UserInfo userInfo) {
+        UserInfo canonical = users.get(userInfo.id());
+        if (canonical != null && canonical.membership() == userInfo.membership()) {
+            return canonical;
+        }
+        return users.put(userInfo.id(), userInfo);
+    }
+
+    /**
+     * @param id         the room id
+     * @param name       the room name
+     * @param membership the room membership
+     * @return the canonical {@link RoomInfo} with the given id, name and membership
+     */
+    public RoomInfo room(long id, String name, Membership membership) {
+        RoomInfo roomInfo = rooms.get(id);
+        if (roomInfo != null && roomInfo.membership() == membership && Objects.equals(roomInfo.name(), name)) {
+            return roomInfo;
+        }
+        return rooms.put(id, new RoomInfo(id, name, membership));
+    }
+
+    /**
+     * @return the number of canonical users, including those that have been garbage collected but not yet purged
+     */
+    public int users() {
+        return users.size();
+    }
+
+    /**
+     * @return the number of canonical rooms, including those that have been garbage collected but not yet purged
+     */
+    public int rooms() {
+        return rooms.size();
+    }
+
+    /**
+     * <p>Implemented by the JSON contexts that own the {@link InfoPool} of a node.</p>
+     */
+    public interface Owner {
+        /**
+         * @return the pool of the canonical users and rooms
+         */
+        InfoPool getInfoPool();
+    }
+
+    private static class Pool<K, V> {
+        private final ConcurrentMap<K, Ref<K, V>> map = new ConcurrentHashMap<>();
+        private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+
+        private V get(K key) {
+            Ref<K, V> ref = map.get(key);
+            return ref == null ? null : ref.get();
+        }
+
+        private V put(K key, V value) {
+            purge();
+            map.put(key, new Ref<>(key, value, queue));
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void purge() {
+            Ref<K, V> ref;
+            while ((ref = (Ref<K, V>)queue.poll()) != null) {
+                // Only remove the mapping if it has not been replaced.
+                map.remove(ref.key, ref);
+            }
+        }
+
+        private int size() {
+            return map.size();
+        }
+    }
+
+    private static class Ref<K, V> extends WeakReference<V> {
+        private final K key;
+
+        private Ref(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+}
@@ -21,6 +21,15 @@ import java.util.Map;
 import org.eclipse.jetty.util.ajax.JSON;
 
 public class RoomInfoConvertor implements JSON.Convertor {
+    private final InfoPool infoPool;
+
+    /**
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public RoomInfoConvertor(InfoPool infoPool) {
+        this.infoPool = infoPool;
+    }
+
     @Override
     public void toJSON(Object obj, JSON.Output out) {
         RoomInfo roomInfo = (RoomInfo)obj;
@@ -35,6 +44,6 @@ public class RoomInfoConvertor implements JSON.Convertor {
         long id = ((Number)object.get("id")).longValue();
         String name = (String)object.get("name");
         Membership membership = (Membership)object.get("membership");
-        return new RoomInfo(id, name, membership);
+        return infoPool.room(id, name, membership);
     }
 }
@@ -21,6 +21,15 @@ import java.util.Map;
 import org.eclipse.jetty.util.ajax.JSON;
 
 public class UserInfoConvertor implements JSON.Convertor {
+    private final InfoPool infoPool;
+
+    /**
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public UserInfoConvertor(InfoPool infoPool) {
+        this.infoPool = infoPool;
+    }
+
     @Override
     public void toJSON(Object obj, JSON.Output out) {
         UserInfo userInfo = (UserInfo)obj;
@@ -33,6 +42,6 @@ public class UserInfoConvertor implements JSON.Convertor {
     public Object fromJSON(Map object) {
         String id = (String)object.get("id");
         Membership membership = (Membership)object.get("membership");
-        return new UserInfo(id, membership);
+        return infoPool.user(id, membership);
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.cometd.annotation.Service;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.Promise;
+import org.cometd.bayeux.client.ClientSession;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.demo.model.BinaryInfoCodec;
+import org.cometd.demo.model.InfoPool;
+import org.cometd.oort.Oort;
+import org.cometd.oort.OortComet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link BinaryLinkService} encodes the data of the messages exchanged between nodes with
+ * {@link BinaryInfoCodec}, while the messages exchanged with browsers remain JSON.</p>
+ * <p>Messages travel between nodes in both directions: from the {@link OortComet}s of the local node
+ * to the remote nodes (for example, {@link org.cometd.oort.OortService} forwards), and from the local
+ * node to the sessions of the remote {@link OortComet}s (for example, messages on the channels
+ * {@link Oort#observeChannel(String) observed} by the remote nodes).
+ * This service installs an extension on the {@link OortComet}s, and a {@link BayeuxServer.Extension}
+ * that encodes the messages sent to, and decodes the messages received from, the remote nodes.</p>
+ * <p>The encoded data is carried as a base64 string, because the Bayeux transports are text based,
+ * and it is marked by the {@value #BINARY_FIELD} field of the message {@code ext}.
+ * Messages whose data cannot be encoded are sent as JSON.</p>
+ * <p>All the nodes of the cluster must enable this service, or none of them.</p>
+ */
+@Service(BinaryLinkService.NAME)
+public class BinaryLinkService implements BayeuxServer.Extension, Oort.CometListener {
+    public static final String NAME = "binary_link";
+    public static final String BINARY_FIELD = "bin";
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinaryLinkService.class);
+
+    private final ClientSession.Extension cometExtension = new CometExtension();
+    private final Oort oort;
+    private final InfoPool infoPool;
+
+    /**
+     * @param oort     the Oort instance
+     * @param infoPool the pool of the canonical users and rooms of the node
+     */
+    public BinaryLinkService(Oort oort, InfoPool infoPool) {
+        this.oort = oort;
+        this.infoPool = infoPool;
+    }
+
+    @PostConstruct
+    public void construct() {
+        oort.getBayeuxServer().addExtension(this);
+        oort.addCometListener(this);
+        for (String cometURL : oort.getKnownComets()) {
+            addCometExtension(cometURL);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        oort.removeCometListener(this);
+        for (String cometURL : oort.getKnownComets()) {
+            OortComet comet = oort.getComet(cometURL);
+            if (comet != null) {
+                comet.removeExtension(cometExtension);
+            }
+        }
+        oort.getBayeuxServer().removeExtension(this);
+    }
+
+    @Override
+    public void cometJoined(Event event) {
+        addCometExtension(event.getCometURL());
+    }
+
+    private void addCometExtension(String cometURL) {
+        OortComet comet = oort.getComet(cometURL);
+        if (comet != null) {
+            comet.addExtension(cometExtension);
+        }
+    }
+
+    @Override
+    public boolean rcv(ServerSession from, ServerMessage.Mutable message) {
+        if (from != null && oort.isOort(from)) {
+            decode(message);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean send(ServerSession from, ServerSession to, ServerMessage.Mutable message) {
+        if (to == null || !oort.isOort(to) || isEncoded(message)) {
+            return true;
+        }
+        String encoded = encode(message.getData());
+        if (encoded == null) {
+            return true;
+        }
+        // Broadcast messages are shared by all the subscribers, most of which
+        // are browsers, so deliver an encoded copy instead of modifying them.
+        ServerMessage.Mutable copy = oort.getBayeuxServer().newMessage();
+        copy.putAll(message);
+        Map<String, Object> ext = message.getExt();
+        copy.put(Message.EXT_FIELD, ext == null ? new HashMap<>() : new HashMap<>(ext));
+        mark(copy, encoded);
+        to.deliver(from, copy, Promise.noop());
+        return false;
+    }
+
+    private static String encode(Object data) {
+        if (data == null) {
+            return null;
+        }
+        byte[] bytes = BinaryInfoCodec.encode(data);
+        return bytes == null ? null : Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static void mark(Message.Mutable message, String encoded) {
+        message.setData(encoded);
+        message.getExt(true).put(BINARY_FIELD, true);
+    }
+
+    private static boolean isEncoded(Message message) {
+        Map<String, Object> ext = message.getExt();
+        return ext != null && ext.containsKey(BINARY_FIELD);
+    }
+
+    private void decode(Message.Mutable message) {
+        if (!isEncoded(message)) {
+            return;
+        }
+        message.getExt().remove(BINARY_FIELD);
+        if (message.getData() instanceof String encoded) {
+            try {
+                message.setData(BinaryInfoCodec.decode(Base64.getDecoder().decode(encoded), infoPool));
+            } catch (IllegalArgumentException x) {
+                LOGGER.warn("Could not decode binary data of message {}", message, x);
+            }
+        }
+    }
+
+    /**
+     * <p>The extension of the {@link OortComet}s, that encodes the messages sent to the
+     * remote node, and decodes the messages received from the remote node.</p>
+     */
+    private class CometExtension implements ClientSession.Extension {
+        @Override
+        public boolean rcv(ClientSession session, Message.Mutable message) {
+            decode(message);
+            return true;
+        }
+
+        @Override
+        public boolean send(ClientSession session, Message.Mutable message) {
+            if (!isEncoded(message)) {
+                String encoded = encode(message.getData());
+                if (encoded != null) {
+                    mark(message, encoded);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -16,6 +16,17 @@
 
 package org.cometd.demo.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.cometd.annotation.Service;
@@ -23,58 +34,218 @@ import org.cometd.demo.model.RoomChatInfo;
 import org.cometd.demo.model.RoomInfo;
 import org.cometd.oort.Oort;
 import org.cometd.oort.OortService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>{@link ChatHistoryArchiveService} is responsible to send the chat messages to archive to the right node.</p>
  * <p>Chat messages are archived in the node that owns the room by an instance of {@link ChatHistoryService}.</p>
+ * <p>When the batch size is greater than one, chat messages for rooms owned by other nodes are accumulated
+ * per owner node, and forwarded in a single message when either the batch size is reached or the batch delay
+ * expires, whichever comes first, to reduce the number of messages exchanged between nodes.</p>
+ * <p>After archiving chat messages, the owner node forwards them asynchronously to the standby node
+ * of each room (see {@link RoomsService#findStandbyOortURLFor(long)}), that keeps the most recent
+ * chat messages of the room in case the owner node fails.
+ * Replicas carry the sequences of the chat messages in the owner node, and are batched per standby
+ * node like the chat messages forwarded to the owner node.</p>
+ * <p>The round-trip of the forwards to the owner node is measured by the {@link MetricsService#ARCHIVE_FORWARD}
+ * metric, for single chat messages and batches alike.</p>
  */
 @Service(ChatHistoryArchiveService.NAME)
-public class ChatHistoryArchiveService extends OortService<Void, Void> {
+public class ChatHistoryArchiveService extends OortService<Void, Long> {
     public static final String NAME = "chat_history_archive";
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChatHistoryArchiveService.class);
+    private static final String REPLICA = "replica";
+    private static final String SEQUENCES = "sequences";
 
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Batch> replicaBatches = new ConcurrentHashMap<>();
     private final RoomsService roomsService;
     private final ChatHistoryService chatHistoryService;
+    private final int batchSize;
+    private final long batchDelay;
+    private final Metric forwardMetric;
+    private ScheduledExecutorService scheduler;
 
-    public ChatHistoryArchiveService(Oort oort, RoomsService roomsService, ChatHistoryService chatHistoryService) {
+    /**
+     * @param oort               the Oort instance
+     * @param roomsService       the service to find the node that owns a room
+     * @param chatHistoryService the local chat history storage
+     * @param batchSize          the max number of chat messages forwarded together, or 1 to disable batching
+     * @param batchDelay         the max time, in milliseconds, a chat message waits in a batch before being forwarded
+     * @param metricsService     the service that holds the metrics
+     */
+    public ChatHistoryArchiveService(Oort oort, RoomsService roomsService, ChatHistoryService chatHistoryService, int batchSize, long batchDelay, MetricsService metricsService) {
         super(oort, NAME);
         this.roomsService = roomsService;
         this.chatHistoryService = chatHistoryService;
+        this.batchSize = batchSize;
+        this.batchDelay = batchDelay;
+        this.forwardMetric = metricsService.metric(MetricsService.ARCHIVE_FORWARD);
     }
 
     @PostConstruct
     public void construct() throws Exception {
+        if (isBatching()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
         start();
     }
 
     @PreDestroy
     public void destroy() throws Exception {
+        if (scheduler != null) {
+            batches.values().forEach(Batch::flush);
+            replicaBatches.values().forEach(Batch::flush);
+            scheduler.shutdownNow();
+        }
         stop();
     }
 
+    private boolean isBatching() {
+        return batchSize > 1 && batchDelay > 0;
+    }
+
     public void archive(RoomChatInfo roomChatInfo)
     {
         RoomInfo roomInfo = roomChatInfo.roomInfo();
         String oortURL = roomsService.findOortURLFor(roomInfo.id());
         if (oortURL != null)
         {
-            forward(oortURL, roomChatInfo, null);
+            // Archiving on the local node does not send messages, so there is no need to batch.
+            if (isBatching() && !oortURL.equals(getOort().getURL())) {
+                batches.computeIfAbsent(oortURL, key -> new Batch(key, false)).add(roomChatInfo, -1);
+            } else {
+                forward(oortURL, roomChatInfo, forwardMetric.begin());
+            }
         }
     }
 
     @Override
     protected Result<Void> onForward(Request request) {
-        final RoomChatInfo roomChatInfo = (RoomChatInfo)request.getData();
-        chatHistoryService.archive(roomChatInfo);
+        Object data = request.getData();
+        if (data instanceof Map<?, ?> map) {
+            chatHistoryService.replicate(toList(map.get(REPLICA)), toSequences(map.get(SEQUENCES)));
+            return null;
+        }
+        List<RoomChatInfo> roomChatInfos = data instanceof RoomChatInfo roomChatInfo ? List.of(roomChatInfo) : toList(data);
+        long[] sequences = chatHistoryService.archive(roomChatInfos, this::replicate);
+        int failed = 0;
+        for (long sequence : sequences) {
+            if (sequence < 0) {
+                ++failed;
+            }
+        }
+        if (failed > 0) {
+            return Result.failure("Could not archive " + failed + " of " + roomChatInfos.size() + " chat infos");
+        }
         return null;
     }
 
+    private void replicate(RoomChatInfo roomChatInfo, long sequence) {
+        // Called while holding the lock of the history of the room, so that
+        // the chat messages of a room are queued in sequence order.
+        String standbyURL = roomsService.findStandbyOortURLFor(roomChatInfo.roomInfo().id());
+        if (standbyURL != null) {
+            replicaBatches.computeIfAbsent(standbyURL, key -> new Batch(key, true)).add(roomChatInfo, sequence);
+        }
+    }
+
+    private long[] toSequences(Object data) {
+        Object[] array = data instanceof Collection<?> collection ? collection.toArray() : (Object[])data;
+        long[] result = new long[array.length];
+        for (int i = 0; i < array.length; ++i) {
+            result[i] = ((Number)array[i]).longValue();
+        }
+        return result;
+    }
+
+    private List<RoomChatInfo> toList(Object data) {
+        List<RoomChatInfo> result = new ArrayList<>();
+        if (data instanceof Object[] array) {
+            for (Object item : array) {
+                result.add((RoomChatInfo)item);
+            }
+        } else if (data instanceof Collection<?> collection) {
+            for (Object item : collection) {
+                result.add((RoomChatInfo)item);
+            }
+        }
+        return result;
+    }
+
     @Override
-    protected void onForwardSucceeded(Void result, Void context) {
-        // Nothing to do
+    protected void onForwardSucceeded(Void result, Long begin) {
+        // Replicas are forwarded without context.
+        if (begin != null) {
+            forwardMetric.succeeded(begin);
+        }
     }
 
     @Override
-    protected void onForwardFailed(Object failure, Void context) {
-        // Nothing to do
+    protected void onForwardFailed(Object failure, Long begin) {
+        if (begin != null) {
+            forwardMetric.failed(begin);
+        }
+    }
+
+    /**
+     * <p>The chat messages waiting to be forwarded to a particular node, either to be archived by
+     * the owner node, or to be replicated, together with their sequences, by the standby node.</p>
+     * <p>Batches are forwarded while holding the lock, so that they arrive to the
+     * destination node in the same order the chat messages have been archived.
+     * Without batching, every chat message is forwarded as soon as it is added.</p>
+     */
+    private class Batch {
+        private final String oortURL;
+        private final boolean replica;
+        private List<RoomChatInfo> roomChatInfos = new ArrayList<>();
+        private List<Long> sequences = new ArrayList<>();
+        private ScheduledFuture<?> task;
+
+        private Batch(String oortURL, boolean replica) {
+            this.oortURL = oortURL;
+            this.replica = replica;
+        }
+
+        private synchronized void add(RoomChatInfo roomChatInfo, long sequence) {
+            roomChatInfos.add(roomChatInfo);
+            if (replica) {
+                sequences.add(sequence);
+            }
+            if (!isBatching() || roomChatInfos.size() >= batchSize) {
+                flush();
+            } else if (task == null) {
+                task = scheduler.schedule(this::flush, batchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void flush() {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+            if (roomChatInfos.isEmpty()) {
+                return;
+            }
+            List<RoomChatInfo> batch = roomChatInfos;
+            roomChatInfos = new ArrayList<>();
+            if (replica) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Replicating {} chat infos to {}", batch.size(), oortURL);
+                }
+                forward(oortURL, Map.of(REPLICA, batch, SEQUENCES, sequences), null);
+                sequences = new ArrayList<>();
+            } else {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Forwarding {} chat infos to {}", batch.size(), oortURL);
+                }
+                forward(oortURL, batch, forwardMetric.begin());
+            }
+        }
     }
 }
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cometd.demo.model.ChatInfo;
+import org.cometd.demo.model.InfoPool;
+import org.cometd.demo.model.Membership;
+import org.cometd.demo.model.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link ChatHistoryLog} is the durable storage of the chat messages of the rooms owned by the local node.</p>
+ * <p>Rooms are distributed over a fixed number of partitions, and each partition is an append-only log
+ * made of fixed size, memory-mapped, segment files.
+ * Appending a chat message is a sequential write in the last segment of the partition of the room;
+ * when the last segment is full, a new segment is created.
+ * Only the last segment and a few recently read segments of each partition are kept mapped,
+ * the other segments are mapped again when they are read.</p>
+ * <p>Each record links to the previous record of the same room, so that the chat messages of a room
+ * are read by walking back the chain of records, directly from the mapped segments, without copying
+ * the log data to the heap before decoding it.
+ * Each partition keeps a sparse in-memory index with the position of the last record of each room and
+ * of one record every {@value #CHECKPOINT_INTERVAL} records of each room, so that reads never walk back
+ * more than {@value #CHECKPOINT_INTERVAL} records before the first record they return.
+ * The index is rebuilt by scanning the segments when the log is opened.</p>
+ * <p>Removing a room appends a tombstone record for the room, so that the records of the removed room
+ * are not indexed again when the log is opened again, and are never returned for another room that
+ * reuses the same id. The first record of each incarnation of a room has no previous record, so that
+ * the chains of records of different incarnations are never linked.</p>
+ * <p>Each record has the following layout:</p>
+ * <pre>
+ * int    length of the rest of the record
+ * long   room id
+ * long   position of the previous record of the room, -1 for the first record, or -2 for a tombstone
+ * byte   user membership ordinal
+ * short  user id length
+ * byte[] user id, UTF-8
+ * byte[] text, UTF-8
+ * </pre>
+ */
+public class ChatHistoryLog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChatHistoryLog.class);
+    private static final int HEADER_LENGTH = Integer.BYTES + Long.BYTES + Long.BYTES + Byte.BYTES + Short.BYTES;
+    private static final int CHECKPOINT_INTERVAL = 256;
+    private static final int MAX_MAPPED_SEGMENTS = 8;
+    private static final long NO_RECORD = -1;
+    private static final long TOMBSTONE = -2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final InfoPool infoPool;
+    private final Partition[] partitions;
+
+    /**
+     * @param directory   the directory of the segment files
+     * @param partitions  the number of partitions
+     * @param segmentSize the size, in bytes, of the segment files
+     * @param infoPool    the pool of the canonical users and rooms of the node
+     */
+    public ChatHistoryLog(Path directory, int partitions, int segmentSize, InfoPool infoPool) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.infoPool = infoPool;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; ++i) {
+            this.partitions[i] = new Partition(i);
+        }
+    }
+
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        for (Partition partition : partitions) {
+            partition.open();
+        }
+    }
+
+    public void close() {
+        for (Partition partition : partitions) {
+            partition.close();
+        }
+    }
+
+    /**
+     * <p>Appends a chat message to the log of the room.</p>
+     * <p>When this method throws, the chat message has not been appended.</p>
+     *
+     * @param roomId   the room id
+     * @param chatInfo the chat message to append to the log of the room
+     * @throws IllegalArgumentException if the chat message does not fit in a segment
+     * @throws IOException              if a new segment cannot be created
+     */
+    public void append(long roomId, ChatInfo chatInfo) throws IOException {
+        partitionFor(roomId).append(roomId, chatInfo);
+    }
+
+    /**
+     * <p>Forgets the chat messages of a room.</p>
+     * <p>The records remain in the segments, but a tombstone record is appended so that they are not
+     * indexed again when the log is opened again.</p>
+     *
+     * @param roomId the room id
+     * @throws IOException if the tombstone record cannot be appended
+     */
+    public void remove(long roomId) throws IOException {
+        partitionFor(roomId).remove(roomId);
+    }
+
+    /**
+     * @param roomId the room id
+     * @return the number of chat messages of the room
+     */
+    public int size(long roomId) {
+        return partitionFor(roomId).size(roomId);
+    }
+
+    /**
+     * @param roomId the room id
+     * @param from   the index of the first chat message, inclusive
+     * @param to     the index of the last chat message, exclusive
+     * @return the chat messages of the room between the given indexes
+     */
+    public List<ChatInfo> read(long roomId, int from, int to) {
+        return partitionFor(roomId).read(roomId, from, to);
+    }
+
+    private Partition partitionFor(long roomId) {
+        return partitions[Math.floorMod(Long.hashCode(roomId), partitions.length)];
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long)segment << 32) | offset;
+    }
+
+    static ChatInfo decode(ByteBuffer record, InfoPool infoPool) {
+        Membership membership = Membership.values()[record.get()];
+        String userId = decodeString(record, record.getShort());
+        String text = decodeString(record, record.remaining());
+        return new ChatInfo(infoPool.user(userId, membership), text);
+    }
+
+    private static String decodeString(ByteBuffer buffer, int length) {
+        String result;
+        if (buffer.hasArray()) {
+            result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            // Decode directly from the mapped memory.
+            result = StandardCharsets.UTF_8.decode(buffer.slice(buffer.position(), length)).toString();
+        }
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    private class Partition {
+        private final Map<Long, RoomIndex> rooms = new HashMap<>();
+        private final Map<Integer, MappedByteBuffer> mapped = new LinkedHashMap<>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+                // Unreferenced mappings are unmapped by the garbage collector.
+                return size() > MAX_MAPPED_SEGMENTS;
+            }
+        };
+        private final int id;
+        private int segments;
+        private MappedByteBuffer current;
+
+        private Partition(int id) {
+            this.id = id;
+        }
+
+        private synchronized void open() throws IOException {
+            int count = 0;
+            while (Files.exists(segmentPath(count))) {
+                ++count;
+            }
+            for (int segment = 0; segment < count; ++segment) {
+                boolean last = segment == count - 1;
+                MappedByteBuffer buffer = map(segment, last ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+                // Scanning leaves the position of the last segment after its last record.
+                scan(segment, buffer);
+                if (last) {
+                    current = buffer;
+                }
+            }
+            segments = count;
+            if (current == null) {
+                roll();
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Opened chat history partition {} with {} segments and {} rooms", id, segments, rooms.size());
+            }
+        }
+
+        private void scan(int segment, ByteBuffer buffer) {
+            // Segments are zero filled, so a zero length marks the end of the records.
+            while (buffer.remaining() >= HEADER_LENGTH) {
+                int offset = buffer.position();
+                int length = buffer.getInt(offset);
+                if (length == 0) {
+                    break;
+                }
+                long roomId = buffer.getLong(offset + Integer.BYTES);
+                long previous = buffer.getLong(offset + Integer.BYTES + Long.BYTES);
+                if (previous == TOMBSTONE) {
+                    rooms.remove(roomId);
+                } else if (previous == NO_RECORD) {
+                    // A new incarnation of the room, possibly without a tombstone for the
+                    // previous one if the node stopped before appending it.
+                    RoomIndex index = new RoomIndex();
+                    index.add(position(segment, offset));
+                    rooms.put(roomId, index);
+                } else {
+                    RoomIndex index = rooms.get(roomId);
+                    if (index != null && index.last == previous) {
+                        index.add(position(segment, offset));
+                    } else {
+                        LOGGER.warn("Skipping unlinked chat history record of room {} at {}/{} in partition {}", roomId, segment, offset, id);
+                    }
+                }
+                buffer.position(offset + Integer.BYTES + length);
+            }
+        }
+
+        private Path segmentPath(int segment) {
+            return directory.resolve(String.format("chats-%03d-%06d.log", id, segment));
+        }
+
+        private MappedByteBuffer map(int segment, FileChannel.MapMode mode) throws IOException {
+            Path path = segmentPath(segment);
+            try (FileChannel channel = mode == FileChannel.MapMode.READ_ONLY ?
+                    FileChannel.open(path, StandardOpenOption.READ) :
+                    FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping remains valid after the channel is closed.
+                return channel.map(mode, 0, segmentSize);
+            }
+        }
+
+        private synchronized ByteBuffer segment(int segment) throws IOException {
+            if (segment == segments - 1) {
+                return current;
+            }
+            MappedByteBuffer result = mapped.get(segment);
+            if (result == null) {
+                result = map(segment, FileChannel.MapMode.READ_ONLY);
+                mapped.put(segment, result);
+            }
+            return result;
+        }
+
+        private void roll() throws IOException {
+            MappedByteBuffer next = map(segments, FileChannel.MapMode.READ_WRITE);
+            if (current != null) {
+                current.force();
+            }
+            // The previous segment is mapped again, read-only, only if it is read.
+            current = next;
+            ++segments;
+        }
+
+        private synchronized void append(long roomId, ChatInfo chatInfo) throws IOException {
+            UserInfo userInfo = chatInfo.userInfo();
+            byte[] userId = userInfo.id().getBytes(StandardCharsets.UTF_8);
+            byte[] text = chatInfo.text().getBytes(StandardCharsets.UTF_8);
+            int recordLength = HEADER_LENGTH + userId.length + text.length;
+            if (recordLength > segmentSize) {
+                throw new IllegalArgumentException("Chat message too large to be archived (" + recordLength + " bytes) for room " + roomId);
+            }
+            if (current.remaining() < recordLength) {
+                roll();
+            }
+            RoomIndex index = rooms.computeIfAbsent(roomId, key -> new RoomIndex());
+            int offset = current.position();
+            current.putInt(recordLength - Integer.BYTES)
+                    .putLong(roomId)
+                    .putLong(index.last)
+                    .put((byte)userInfo.membership().ordinal())
+                    .putShort((short)userId.length)
+                    .put(userId)
+                    .put(text);
+            index.add(position(segments - 1, offset));
+        }
+
+        private synchronized void remove(long roomId) throws IOException {
+            if (rooms.remove(roomId) == null) {
+                // No records for this incarnation of the room.
+                return;
+            }
+            if (current.remaining() < HEADER_LENGTH) {
+                roll();
+            }
+            current.putInt(HEADER_LENGTH - Integer.BYTES)
+                    .putLong(roomId)
+                    .putLong(TOMBSTONE)
+                    .put((byte)0)
+                    .putShort((short)0);
+        }
+
+        private synchronized int size(long roomId) {
+            RoomIndex index = rooms.get(roomId);
+            return index == null ? 0 : index.size;
+        }
+
+        private List<ChatInfo> read(long roomId, int from, int to) {
+            int index;
+            long position;
+            synchronized (this) {
+                RoomIndex roomIndex = rooms.get(roomId);
+                if (roomIndex == null) {
+                    return List.of();
+                }
+                from = Math.max(0, from);
+                to = Math.min(roomIndex.size, to);
+                if (from >= to) {
+                    return List.of();
+                }
+                // Start from the closest known record at or after the last record to read.
+                int checkpoint = (to - 1 + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+                index = checkpoint * CHECKPOINT_INTERVAL;
+                if (index < roomIndex.size) {
+                    position = roomIndex.checkpoints[checkpoint];
+                } else {
+                    index = roomIndex.size - 1;
+                    position = roomIndex.last;
+                }
+            }
+            ChatInfo[] result = new ChatInfo[to - from];
+            try {
+                int segmentIndex = -1;
+                ByteBuffer segment = null;
+                while (index >= from) {
+                    if (position < 0) {
+                        throw new IOException("Broken chain of records at index " + index);
+                    }
+                    if (segmentIndex != (int)(position >>> 32)) {
+                        segmentIndex = (int)(position >>> 32);
+                        segment = segment(segmentIndex);
+                    }
+                    int offset = (int)position;
+                    if (index < to) {
+                        int length = segment.getInt(offset);
+                        // Absolute slices do not modify the segment, so they do not need to lock.
+                        ByteBuffer record = segment.slice(offset + Integer.BYTES + 2 * Long.BYTES, length - 2 * Long.BYTES);
+                        result[index - from] = decode(record, infoPool);
+                    }
+                    position = segment.getLong(offset + Integer.BYTES + Long.BYTES);
+                    --index;
+                }
+            } catch (IOException x) {
+                LOGGER.warn("Could not read chat messages of room {}", roomId, x);
+                return List.of();
+            }
+            return Arrays.asList(result);
+        }
+
+        private synchronized void close() {
+            if (current != null) {
+                current.force();
+            }
+            mapped.clear();
+            rooms.clear();
+            current = null;
+        }
+    }
+
+    /**
+     * <p>The position of the last record of a room, and the positions of one record
+     * every {@value #CHECKPOINT_INTERVAL} records of the room, in append order.</p>
+     */
+    private static class RoomIndex {
+        private long[] checkpoints = new long[1];
+        private long last = NO_RECORD;
+        private int size;
+
+        private void add(long position) {
+            if (size % CHECKPOINT_INTERVAL == 0) {
+                int checkpoint = size / CHECKPOINT_INTERVAL;
+                if (checkpoint == checkpoints.length) {
+                    checkpoints = Arrays.copyOf(checkpoints, checkpoint * 2);
+                }
+                checkpoints[checkpoint] = position;
+            }
+            last = position;
+            ++size;
+        }
+    }
+}
@@ -16,10 +16,15 @@
 
 package org.cometd.demo.service;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import org.cometd.annotation.Listener;
 import org.cometd.annotation.Service;
 import org.cometd.bayeux.Promise;
+import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.demo.model.ChatHistoryInfo;
 import org.cometd.demo.model.RoomInfo;
@@ -33,22 +38,51 @@ import org.slf4j.LoggerFactory;
  * <p>{@link ChatHistoryRequestService} is responsible to send the request to retrive the last messages of a
  * chat room to the right node.</p>
  * <p>Chat messages are archived in the node that owns the room by an instance of {@link ChatHistoryService}.</p>
+ * <p>If the node that owns the room cannot be reached, the request to retrieve the chat history
+ * is forwarded once more, either to the node the room has been re-homed to if the owner node left
+ * the cluster in the meantime, or otherwise to the standby node of the room,
+ * see {@link RoomsService#findStandbyOortURLFor(long)} and {@link ChatHistoryArchiveService}.</p>
+ * <p>Members of a room can also page back through the history of the room, by sending to
+ * {@code /service/chat/history} the room id, the {@code before} cursor received with the previous page
+ * (or with the chat history delivered when joining the room), and the max number of messages.</p>
+ * <p>The time to retrieve the chat history, including the retry on the standby node, is measured by the
+ * {@link MetricsService#HISTORY_RETRIEVE} metric.</p>
  */
 @Service(ChatHistoryRequestService.NAME)
-public class ChatHistoryRequestService extends OortService<ChatHistoryInfo, OortService.ServerContext> {
+public class ChatHistoryRequestService extends OortService<Object, OortService.ServerContext> {
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatHistoryRequestService.class);
 
     public static final String NAME = "chat_history_request";
+    private static final String ROOM_ID = "roomId";
+    private static final String BEFORE = "before";
+    private static final String LIMIT = "limit";
+    private static final String CHATS = "chats";
+    private static final String CURSOR = "cursor";
 
     private final UsersService usersService;
     private final RoomsService roomsService;
+    private final RoomMembersService membersService;
     private final ChatHistoryService chatHistoryService;
+    private final int pageSize;
+    private final Metric retrieveMetric;
 
-    public ChatHistoryRequestService(Oort oort, UsersService usersService, RoomsService roomsService, ChatHistoryService chatHistoryService) {
+    /**
+     * @param oort               the Oort instance
+     * @param usersService       the service to find users
+     * @param roomsService       the service to find the node that owns a room
+     * @param membersService     the service to check the members of a room
+     * @param chatHistoryService the local chat history storage
+     * @param pageSize           the max number of chat messages in a page of history
+     * @param metricsService     the service that holds the metrics
+     */
+    public ChatHistoryRequestService(Oort oort, UsersService usersService, RoomsService roomsService, RoomMembersService membersService, ChatHistoryService chatHistoryService, int pageSize, MetricsService metricsService) {
         super(oort, NAME);
         this.usersService = usersService;
         this.roomsService = roomsService;
+        this.membersService = membersService;
         this.chatHistoryService = chatHistoryService;
+        this.pageSize = pageSize;
+        this.retrieveMetric = metricsService.metric(MetricsService.HISTORY_RETRIEVE);
     }
 
     @PostConstruct
@@ -64,30 +98,136 @@ public class ChatHistoryRequestService extends OortService<ChatHistoryInfo, Oort
     public void deliverChatHistory(ServerSession remote, RoomInfo roomInfo) {
         String oortURL = roomsService.findOortURLFor(roomInfo.id());
         if (oortURL != null) {
-            forward(oortURL, roomInfo, new ServerContext(remote, null));
+            forward(oortURL, roomInfo, new RequestContext(remote, null, roomInfo.id(), roomInfo, oortURL, retrieveMetric.begin(), false));
         }
     }
 
+    /**
+     * Remote clients send a message to retrieve a page of the chat history of a room they joined,
+     * that is handled by this method.
+     *
+     * @param remote  the remote client
+     * @param message the history message, with the {@code roomId}, the {@code before} cursor and the {@code limit}
+     */
+    @Listener("/service/chat/history")
+    public void requestChatHistory(ServerSession remote, ServerMessage message) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Chat history request from {}: {}", remote, message);
+        }
+        Map<String, Object> data = message.getDataAsMap();
+        long roomId = ((Number)data.get(ROOM_ID)).longValue();
+        RoomInfo roomInfo = roomsService.findRoomInfo(roomId);
+        if (roomInfo == null) {
+            requestFailed(remote, "Cannot retrieve chat history, unknown room");
+            return;
+        }
+        UserInfo userInfo = usersService.getUserInfo(remote);
+        if (userInfo == null || !membersService.isMember(roomInfo, userInfo)) {
+            requestFailed(remote, "Cannot retrieve chat history, user not member of the room");
+            return;
+        }
+        String oortURL = roomsService.findOortURLFor(roomId);
+        if (oortURL == null) {
+            requestFailed(remote, "Cannot retrieve chat history, unknown owner node");
+            return;
+        }
+        Number before = (Number)data.get(BEFORE);
+        Number limit = (Number)data.get(LIMIT);
+        Map<String, Object> request = new HashMap<>(4);
+        request.put(ROOM_ID, roomId);
+        request.put(BEFORE, before == null ? Long.MAX_VALUE : before.longValue());
+        request.put(LIMIT, limit == null ? pageSize : Math.max(1, Math.min(pageSize, limit.intValue())));
+        forward(oortURL, request, new RequestContext(remote, message, roomId, request, oortURL, retrieveMetric.begin(), false));
+    }
+
     @Override
-    protected Result<ChatHistoryInfo> onForward(Request request) {
-        RoomInfo roomInfo = (RoomInfo)request.getData();
-        return Result.success(chatHistoryService.retrieve(roomInfo));
+    protected Result<Object> onForward(Request request) {
+        Object data = request.getData();
+        if (data instanceof RoomInfo roomInfo) {
+            return Result.success(chatHistoryService.retrieveEncoded(roomInfo));
+        }
+        Map<String, Object> page = request.getDataAsMap();
+        long roomId = ((Number)page.get(ROOM_ID)).longValue();
+        long before = ((Number)page.get(BEFORE)).longValue();
+        int limit = ((Number)page.get(LIMIT)).intValue();
+        ChatHistoryInfo.Chats chats = chatHistoryService.retrieve(roomId, before, limit);
+        Map<String, Object> result = new HashMap<>(4);
+        result.put(ROOM_ID, roomId);
+        result.put(CHATS, chats.chatInfos());
+        // No cursor when there are no older messages.
+        if (!chats.chatInfos().isEmpty() && chats.first() > 0) {
+            result.put(CURSOR, chats.first());
+        }
+        return Result.success(result);
     }
 
     @Override
-    protected void onForwardSucceeded(ChatHistoryInfo result, ServerContext context) {
+    protected void onForwardSucceeded(Object result, ServerContext context) {
+        retrieveMetric.succeeded(((RequestContext)context).begin);
         ServerSession remote = context.getServerSession();
         UserInfo userInfo = usersService.getUserInfo(remote);
         if (userInfo != null) {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Delivering chat history to {}: {}", userInfo, result);
             }
-            remote.deliver(getLocalSession(), "/service/chat", result, Promise.noop());
+            ServerMessage message = context.getServerMessage();
+            String channel = message == null ? "/service/chat" : message.getChannel();
+            remote.deliver(getLocalSession(), channel, result, Promise.noop());
         }
     }
 
     @Override
     protected void onForwardFailed(Object failure, ServerContext context) {
-        // Nothing to do, the user will see an empty chat history on the UI
+        RequestContext requestContext = (RequestContext)context;
+        if (!requestContext.retried) {
+            String retryURL = findRetryOortURL(requestContext);
+            if (retryURL != null) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Retrieving chat history of room {} from node {}: {}", requestContext.roomId, retryURL, failure);
+                }
+                forward(retryURL, requestContext.data, new RequestContext(context.getServerSession(), context.getServerMessage(),
+                        requestContext.roomId, requestContext.data, retryURL, requestContext.begin, true));
+                return;
+            }
+        }
+        // Joins are not notified, the user will see an empty chat history on the UI.
+        if (context.getServerMessage() != null) {
+            requestFailed(context.getServerSession(), "Cannot retrieve chat history: " + failure);
+        }
+        retrieveMetric.failed(requestContext.begin);
+    }
+
+    private String findRetryOortURL(RequestContext context) {
+        // If the owner node left the cluster, the room has been re-homed to its standby node.
+        String oortURL = roomsService.findOortURLFor(context.roomId);
+        if (oortURL == null || oortURL.equals(context.oortURL)) {
+            oortURL = roomsService.findStandbyOortURLFor(context.roomId);
+        }
+        return oortURL == null || oortURL.equals(context.oortURL) ? null : oortURL;
+    }
+
+    private void requestFailed(ServerSession remote, String message) {
+        remote.deliver(getLocalSession(), "/service/status", message, Promise.noop());
+    }
+
+    /**
+     * <p>The context of a forwarded request, with the data to forward it again to another node.</p>
+     * <p>Requests for the chat history delivered when joining a room have no message.</p>
+     */
+    private static class RequestContext extends ServerContext {
+        private final long roomId;
+        private final Object data;
+        private final String oortURL;
+        private final long begin;
+        private final boolean retried;
+
+        private RequestContext(ServerSession session, ServerMessage message, long roomId, Object data, String oortURL, long begin, boolean retried) {
+            super(session, message);
+            this.roomId = roomId;
+            this.data = data;
+            this.oortURL = oortURL;
+            this.begin = begin;
+            this.retried = retried;
+        }
     }
 }
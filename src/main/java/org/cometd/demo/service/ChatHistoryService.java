@@ -16,14 +16,29 @@
 
 package org.cometd.demo.service;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import javax.management.ObjectName;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.cometd.annotation.Service;
 import org.cometd.demo.model.ChatHistoryInfo;
 import org.cometd.demo.model.ChatInfo;
+import org.cometd.demo.model.InfoPool;
 import org.cometd.demo.model.RoomChatInfo;
 import org.cometd.demo.model.RoomInfo;
+import org.eclipse.jetty.util.ajax.JSON;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,49 +49,574 @@ import org.slf4j.LoggerFactory;
  * <p>This service does not use any Oort features, it is just wrapper for a map from room id to
  * {@link ChatHistoryInfo} instances, to be used by other services like {@link ChatHistoryArchiveService}
  * and {@link ChatHistoryRequestService}.</p>
+ * <p>When a log directory is configured, chat messages are also appended to a {@link ChatHistoryLog},
+ * so that the whole history of the rooms survives restarts, while only the most recent messages are
+ * kept in memory; after a restart, the most recent messages are reloaded from the log.</p>
+ * <p>The in-memory history of each room is encoded to JSON only once after each change, so that
+ * repeated joins to a room that received no new messages do not encode the history again.</p>
+ * <p>The memory used by the in-memory histories, including their encoded form, is limited by a
+ * node-wide budget: when the budget is exceeded, the histories of the least recently used rooms are
+ * evicted until the memory used falls below 90% of the budget.
+ * Evicted histories are reloaded from the log, if configured, when they are used again; without a log,
+ * the evicted chat messages are lost, and a warning is logged.
+ * The memory used is only updated with atomic deltas, applied while holding the lock of the history
+ * that changed, so that the updates of histories that have been evicted or removed are not counted.
+ * The budget, the memory used and the number of evictions are exported via JMX,
+ * see {@link ChatHistoryServiceMXBean}.</p>
+ * <p>When an off-heap chunk size is configured, the in-memory histories are stored outside the Java heap
+ * in {@link OffHeapChatHistory} instances, and decoded only when they are delivered.</p>
+ * <p>The history of a room is dropped when the room is removed, see {@link #roomRemoved(RoomInfo)}.</p>
+ * <p>Replicas of the rooms owned by other nodes carry the sequence of each chat message in the owner node,
+ * so that the sequences of the replica, and the cursors it returns, are those of the owner node.
+ * Replicas are only kept in memory, also when the standby node serves the room after the owner node
+ * left the cluster, so that their sequences are never mixed with the indexes of the local log.</p>
  */
 @Service(ChatHistoryService.NAME)
-public class ChatHistoryService {
+public class ChatHistoryService implements ChatHistoryServiceMXBean {
     public static final String NAME = "chat_history";
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatHistoryService.class);
+    private static final long RELEASED = -2;
 
-    private final ConcurrentMap<Long, ChatHistoryInfo> roomToHistory = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, RoomHistory> roomToHistory = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private final Function<Object, String> encoder;
+    private final String nodeId;
     private final int maxEntries;
+    private final long budget;
+    private final OffHeapChatHistory.Slabs slabs;
+    private final ChatHistoryLog log;
+    private final InfoPool infoPool;
+    private ObjectName objectName;
 
-    public ChatHistoryService(int maxEntries) {
+    /**
+     * @param encoder     the function that encodes chat histories to JSON
+     * @param nodeId      the id of the local node, to export the metrics via JMX
+     * @param maxEntries  the max number of chat messages kept in memory per room
+     * @param budget      the max memory, in bytes, for the in-memory histories, or a non-positive value for no limit
+     * @param chunkSize   the size, in bytes, of the off-heap memory of each in-memory history, or a non-positive value to store the histories in the heap
+     * @param logDir      the directory of the chat history log, or null to keep the history only in memory
+     * @param partitions  the number of partitions of the chat history log
+     * @param segmentSize the size, in bytes, of the segment files of the chat history log
+     * @param infoPool    the pool of the canonical users and rooms of the node, to decode the chat messages
+     */
+    public ChatHistoryService(Function<Object, String> encoder, String nodeId, int maxEntries, long budget, int chunkSize, String logDir, int partitions, int segmentSize, InfoPool infoPool) {
+        this.encoder = encoder;
+        this.nodeId = nodeId;
         this.maxEntries = maxEntries;
+        this.budget = budget;
+        this.slabs = chunkSize > 0 ? new OffHeapChatHistory.Slabs(chunkSize) : null;
+        this.log = logDir == null || logDir.isEmpty() ? null : new ChatHistoryLog(Path.of(logDir), partitions, segmentSize, infoPool);
+        this.infoPool = infoPool;
     }
 
-    public void archive(RoomChatInfo roomChatInfo) {
+    @PostConstruct
+    public void construct() throws Exception {
+        if (log != null) {
+            log.open();
+        }
+        objectName = new ObjectName("org.cometd.demo:type=" + ChatHistoryService.class.getSimpleName() + ",node=" + ObjectName.quote(nodeId));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    @Override
+    public long getBudgetBytes() {
+        return budget;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    @Override
+    public int getRoomCount() {
+        return roomToHistory.size();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return slabs == null ? 0 : slabs.getAllocated();
+    }
+
+    /**
+     * @param roomChatInfo the chat message to archive
+     * @return the sequence of the archived chat message, or -1 if it could not be archived
+     */
+    public long archive(RoomChatInfo roomChatInfo) {
         RoomInfo roomInfo = roomChatInfo.roomInfo();
+        RoomHistory roomHistory = historyFor(roomInfo);
+        long result;
+        while ((result = archive(roomHistory, roomChatInfo, null)) == RELEASED) {
+            roomHistory = historyFor(roomInfo);
+        }
+        evictIfOverBudget();
+        return result;
+    }
+
+    /**
+     * <p>Archives a batch of chat messages, possibly for different rooms, in order.</p>
+     * <p>The given callback is invoked with each archived chat message and its sequence while
+     * holding the lock of the history of the room, so that the callbacks for the same room are
+     * invoked in sequence order.</p>
+     *
+     * @param roomChatInfos the chat messages to archive
+     * @param archived      the callback invoked with each archived chat message and its sequence, or null
+     * @return the sequences of the archived chat messages, -1 for those that could not be archived
+     */
+    public long[] archive(List<RoomChatInfo> roomChatInfos, ObjLongConsumer<RoomChatInfo> archived) {
+        long[] result = new long[roomChatInfos.size()];
+        RoomHistory roomHistory = null;
+        for (int i = 0; i < result.length; ++i) {
+            RoomChatInfo roomChatInfo = roomChatInfos.get(i);
+            RoomInfo roomInfo = roomChatInfo.roomInfo();
+            // Batches typically contain runs of messages for the same room.
+            if (roomHistory == null || roomHistory.roomId() != roomInfo.id()) {
+                roomHistory = historyFor(roomInfo);
+            }
+            long sequence;
+            while ((sequence = archive(roomHistory, roomChatInfo, archived)) == RELEASED) {
+                roomHistory = historyFor(roomInfo);
+            }
+            result[i] = sequence;
+        }
+        evictIfOverBudget();
+        return result;
+    }
+
+    /**
+     * <p>Stores a batch of chat messages of rooms owned by other nodes, for which this node is the standby
+     * node, so that this node can provide the most recent chat messages if the owner node fails.</p>
+     * <p>Chat messages with a sequence before the next sequence of the replica have already been replicated,
+     * or arrived out of order, and are ignored.
+     * When the sequence of a chat message is after the next sequence of the replica, because the replica
+     * missed some chat messages, the replica starts over from that chat message.</p>
+     *
+     * @param roomChatInfos the chat messages to store
+     * @param sequences     the sequences of the chat messages in the owner node
+     */
+    public void replicate(List<RoomChatInfo> roomChatInfos, long[] sequences) {
+        for (int i = 0; i < roomChatInfos.size(); ++i) {
+            RoomChatInfo roomChatInfo = roomChatInfos.get(i);
+            while (true) {
+                RoomHistory replica = replicaFor(roomChatInfo.roomInfo(), sequences[i]);
+                // The replica is null if the chat message is stale, and
+                // is released if it has been evicted concurrently.
+                if (replica == null || archive(replica, roomChatInfo, null) != RELEASED) {
+                    break;
+                }
+            }
+        }
+        evictIfOverBudget();
+    }
+
+    /**
+     * <p>Drops the history of a room that has been removed.</p>
+     * <p>The chat messages of the room remain in the segments of the log, but they are not indexed anymore,
+     * also after a restart.</p>
+     *
+     * @param roomInfo the room that has been removed
+     */
+    public void roomRemoved(RoomInfo roomInfo) {
+        long roomId = roomInfo.id();
+        // Release the history before removing it, so that writers retry until the log is updated.
+        RoomHistory roomHistory = roomToHistory.get(roomId);
+        if (roomHistory != null) {
+            usedBytes.addAndGet(-roomHistory.release());
+        }
+        if (log != null) {
+            try {
+                log.remove(roomId);
+            } catch (IOException x) {
+                LOGGER.warn("Could not record the removal of {} in the chat history log", roomInfo, x);
+            }
+        }
+        if (roomHistory != null) {
+            roomToHistory.remove(roomId, roomHistory);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Dropped chat history of {}", roomInfo);
+        }
+    }
+
+    private RoomHistory historyFor(RoomInfo roomInfo) {
         long roomId = roomInfo.id();
-        ChatHistoryInfo roomHistory = roomToHistory.get(roomId);
+        RoomHistory roomHistory = roomToHistory.get(roomId);
         if (roomHistory == null)
         {
-            roomHistory = new ChatHistoryInfo(roomInfo, maxEntries);
-            ChatHistoryInfo existing = roomToHistory.putIfAbsent(roomId, roomHistory);
+            roomHistory = newRoomHistory(roomInfo);
+            // Read the size before the history is visible to other writers.
+            long bytes = roomHistory.bytes();
+            RoomHistory existing = roomToHistory.putIfAbsent(roomId, roomHistory);
             if (existing != null)
             {
+                roomHistory.release();
                 roomHistory = existing;
             }
+            else
+            {
+                usedBytes.addAndGet(bytes);
+            }
+        }
+        roomHistory.accessed = System.nanoTime();
+        return roomHistory;
+    }
+
+    private RoomHistory replicaFor(RoomInfo roomInfo, long sequence) {
+        long roomId = roomInfo.id();
+        while (true) {
+            RoomHistory roomHistory = roomToHistory.get(roomId);
+            if (roomHistory != null && roomHistory.replica) {
+                long next = roomHistory.sequence();
+                if (sequence < next) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Ignoring stale replica chat info of {} with sequence {}, expecting {}", roomInfo, sequence, next);
+                    }
+                    return null;
+                }
+                if (sequence == next) {
+                    roomHistory.accessed = System.nanoTime();
+                    return roomHistory;
+                }
+            }
+            RoomHistory replica = newRoomHistory(roomInfo, sequence, true);
+            replica.accessed = System.nanoTime();
+            long bytes = replica.bytes();
+            if (roomHistory != null) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Restarting replica of {} from sequence {}, was {}", roomInfo, sequence, roomHistory.sequence());
+                }
+                // Release the history before replacing it, see evictIfOverBudget().
+                usedBytes.addAndGet(-roomHistory.release());
+            }
+            boolean replaced = roomHistory == null ?
+                    roomToHistory.putIfAbsent(roomId, replica) == null :
+                    roomToHistory.replace(roomId, roomHistory, replica);
+            if (replaced) {
+                usedBytes.addAndGet(bytes);
+                return replica;
+            }
+            replica.release();
+        }
+    }
+
+    private RoomHistory newRoomHistory(RoomInfo roomInfo) {
+        List<ChatInfo> chatInfos = List.of();
+        long first = 0;
+        if (log != null) {
+            long roomId = roomInfo.id();
+            int size = log.size(roomId);
+            chatInfos = log.read(roomId, size - maxEntries, size);
+            // Keep the sequences aligned with the indexes in the log.
+            first = size - chatInfos.size();
+        }
+        RoomHistory result = newRoomHistory(roomInfo, first, false);
+        // The log may contain chat messages archived with a larger off-heap chunk size;
+        // start after the last one that does not fit, to keep the sequences aligned.
+        int skip = 0;
+        for (int i = 0; i < chatInfos.size(); ++i) {
+            if (!result.accepts(chatInfos.get(i))) {
+                skip = i + 1;
+            }
         }
+        if (skip > 0) {
+            result.release();
+            result = newRoomHistory(roomInfo, first + skip, false);
+        }
+        for (ChatInfo chatInfo : chatInfos.subList(skip, chatInfos.size())) {
+            result.add(chatInfo);
+        }
+        return result;
+    }
+
+    private RoomHistory newRoomHistory(RoomInfo roomInfo, long first, boolean replica) {
+        return slabs == null ?
+                new RoomHistory(new ChatHistoryInfo(roomInfo, maxEntries, first), replica) :
+                new RoomHistory(roomInfo, new OffHeapChatHistory(slabs.acquire(), maxEntries, first, infoPool), replica);
+    }
+
+    private long archive(RoomHistory roomHistory, RoomChatInfo roomChatInfo, ObjLongConsumer<RoomChatInfo> archived) {
         ChatInfo chatInfo = roomChatInfo.chatInfo();
-        ChatInfo discarded = roomHistory.add(chatInfo);
-        if (discarded != null) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Dearchiving old chat info {}", discarded);
+        long sequence;
+        // There is a single writer per room, see ChatHistoryInfo, and the
+        // chat messages are appended to the log in the same order.
+        synchronized (roomHistory) {
+            if (roomHistory.released) {
+                return RELEASED;
+            }
+            if (!roomHistory.accepts(chatInfo)) {
+                // Reject the chat message before appending it to the log,
+                // so that the sequences remain aligned with the indexes in the log.
+                LOGGER.warn("Could not archive chat info {} of {}, too large for the off-heap history", chatInfo, roomHistory.roomInfo);
+                return -1;
+            }
+            sequence = roomHistory.sequence();
+            if (!roomHistory.replica && log != null) {
+                try {
+                    log.append(roomHistory.roomId(), chatInfo);
+                } catch (IOException | IllegalArgumentException x) {
+                    // Do not add the chat message to the in-memory history either,
+                    // so that the sequences remain aligned with the indexes in the log.
+                    LOGGER.warn("Could not archive chat info {} of {}", chatInfo, roomHistory.roomInfo, x);
+                    return -1;
+                }
+            }
+            usedBytes.addAndGet(roomHistory.add(chatInfo));
+            roomHistory.setEncoded(null);
+            if (archived != null) {
+                archived.accept(roomChatInfo, sequence);
             }
         }
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Archived chat info {}", chatInfo);
+            LOGGER.debug("Archived chat info {} with sequence {}", chatInfo, sequence);
         }
+        return sequence;
     }
 
     public ChatHistoryInfo retrieve(RoomInfo roomInfo) {
-        ChatHistoryInfo roomHistory = roomToHistory.get(roomInfo.id());
+        RoomHistory roomHistory = find(roomInfo);
+        return roomHistory == null ? new ChatHistoryInfo(roomInfo, maxEntries) : roomHistory.toChatHistoryInfo();
+    }
+
+    private RoomHistory find(RoomInfo roomInfo) {
+        RoomHistory roomHistory = roomToHistory.get(roomInfo.id());
+        if (roomHistory != null) {
+            roomHistory.accessed = System.nanoTime();
+            return roomHistory;
+        }
+        if (log != null && log.size(roomInfo.id()) > 0) {
+            // Reload the most recent messages, archived before a restart or an eviction.
+            roomHistory = historyFor(roomInfo);
+            evictIfOverBudget();
+            return roomHistory;
+        }
+        return null;
+    }
+
+    /**
+     * @param roomInfo the room
+     * @return the in-memory history of the room, already encoded to JSON
+     */
+    public JSON.Literal retrieveEncoded(RoomInfo roomInfo) {
+        RoomHistory roomHistory = find(roomInfo);
         if (roomHistory == null) {
-            roomHistory = new ChatHistoryInfo(roomInfo, maxEntries);
+            return new JSON.Literal(encoder.apply(new ChatHistoryInfo(roomInfo, maxEntries)));
+        }
+        // Read the sequence before encoding, so that a concurrent
+        // archive makes the encoded history stale, not wrong.
+        long sequence = roomHistory.sequence();
+        Encoded encoded = roomHistory.encoded;
+        if (encoded == null || encoded.sequence() != sequence) {
+            encoded = new Encoded(sequence, new JSON.Literal(encoder.apply(roomHistory.toChatHistoryInfo())));
+            roomHistory.setEncoded(encoded);
+            evictIfOverBudget();
+        }
+        return encoded.literal();
+    }
+
+    /**
+     * @param roomId the room id
+     * @param before the index before which chat messages are returned
+     * @param limit  the max number of chat messages to return
+     * @return the most recent chat messages of the room before the given index
+     */
+    public ChatHistoryInfo.Chats retrieve(long roomId, long before, int limit) {
+        RoomHistory roomHistory = roomToHistory.get(roomId);
+        // Replicas are never in the log.
+        if (log != null && (roomHistory == null || !roomHistory.replica)) {
+            int end = (int)Math.min(before, log.size(roomId));
+            int start = Math.max(0, end - limit);
+            return new ChatHistoryInfo.Chats(log.read(roomId, start, end), start);
+        }
+        // Without the log, only the most recent messages are available.
+        if (roomHistory == null) {
+            return new ChatHistoryInfo.Chats(List.of(), 0);
+        }
+        return roomHistory.chats(before, limit);
+    }
+
+    private void evictIfOverBudget() {
+        if (budget <= 0 || usedBytes.get() <= budget) {
+            return;
+        }
+        synchronized (evictionLock) {
+            if (usedBytes.get() <= budget) {
+                return;
+            }
+            // Snapshot the access times, as they change while sorting.
+            record Candidate(RoomHistory roomHistory, long accessed)
+            {
+            }
+            List<Candidate> candidates = new ArrayList<>();
+            for (RoomHistory roomHistory : roomToHistory.values()) {
+                candidates.add(new Candidate(roomHistory, roomHistory.accessed));
+            }
+            candidates.sort(Comparator.comparingLong(Candidate::accessed));
+            long target = budget / 10 * 9;
+            for (Candidate candidate : candidates) {
+                if (usedBytes.get() <= target) {
+                    break;
+                }
+                RoomHistory roomHistory = candidate.roomHistory();
+                if (roomToHistory.get(roomHistory.roomId()) != roomHistory) {
+                    continue;
+                }
+                // Release the history, under its lock, before removing it: a writer still holding it
+                // either appended to the log already, or fails and retries with the new history, so
+                // that the new history never reads the size of the log before the last append.
+                long bytes = roomHistory.release();
+                roomToHistory.remove(roomHistory.roomId(), roomHistory);
+                if (bytes > 0) {
+                    usedBytes.addAndGet(-bytes);
+                    evictions.incrementAndGet();
+                    if (log == null) {
+                        LOGGER.warn("Evicted chat history of {} without a log, its chat messages are lost", roomHistory.roomInfo);
+                    } else if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Evicted chat history of {}", roomHistory.roomInfo);
+                    }
+                }
+            }
+        }
+    }
+
+    private record Encoded(long sequence, JSON.Literal literal)
+    {
+        private long bytes() {
+            // The JSON string, assuming the worst case of 2 bytes per char.
+            return 24 + 16 + 2L * literal.toString().length();
+        }
+    }
+
+    /**
+     * <p>The in-memory history of a room, either in the heap or off-heap, with its encoded form
+     * and the last time it has been used.</p>
+     * <p>Replicas hold the sequences of the owner node, and are never appended to the local log.</p>
+     */
+    private class RoomHistory {
+        private final RoomInfo roomInfo;
+        private final ChatHistoryInfo chatHistoryInfo;
+        private final OffHeapChatHistory offHeapHistory;
+        private final boolean replica;
+        private volatile Encoded encoded;
+        private volatile long accessed;
+        // Guarded by this.
+        private boolean released;
+
+        private RoomHistory(ChatHistoryInfo chatHistoryInfo, boolean replica) {
+            this.roomInfo = chatHistoryInfo.getRoomInfo();
+            this.chatHistoryInfo = chatHistoryInfo;
+            this.offHeapHistory = null;
+            this.replica = replica;
+        }
+
+        private RoomHistory(RoomInfo roomInfo, OffHeapChatHistory offHeapHistory, boolean replica) {
+            this.roomInfo = roomInfo;
+            this.chatHistoryInfo = null;
+            this.offHeapHistory = offHeapHistory;
+            this.replica = replica;
+        }
+
+        private long roomId() {
+            return roomInfo.id();
+        }
+
+        private long sequence() {
+            return chatHistoryInfo != null ? chatHistoryInfo.getSequence() : offHeapHistory.getSequence();
+        }
+
+        private ChatHistoryInfo.Chats chats(long before, int limit) {
+            return chatHistoryInfo != null ? chatHistoryInfo.getChats(before, limit) : offHeapHistory.getChats(before, limit);
+        }
+
+        private boolean accepts(ChatInfo chatInfo) {
+            return chatHistoryInfo != null || offHeapHistory.accepts(chatInfo);
+        }
+
+        /**
+         * @param chatInfo the chat message to add, that must be {@link #accepts(ChatInfo) accepted}
+         * @return the change of the memory used by this history, in bytes
+         */
+        private long add(ChatInfo chatInfo) {
+            if (chatHistoryInfo == null) {
+                if (!offHeapHistory.add(chatInfo)) {
+                    // Cannot happen for accepted chat messages, as writers hold the lock of this history.
+                    LOGGER.warn("Could not store chat info {} in the off-heap history of {}", chatInfo, roomInfo);
+                }
+                // The off-heap memory is accounted as a whole.
+                return 0;
+            }
+            ChatInfo discarded = chatHistoryInfo.add(chatInfo);
+            if (discarded != null) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Dearchiving old chat info {}", discarded);
+                }
+            }
+            return ChatHistoryInfo.sizeOf(chatInfo) - ChatHistoryInfo.sizeOf(discarded);
+        }
+
+        private ChatHistoryInfo toChatHistoryInfo() {
+            if (chatHistoryInfo != null) {
+                return chatHistoryInfo;
+            }
+            // Decode the off-heap chat messages only to deliver them.
+            ChatHistoryInfo.Chats chats = offHeapHistory.getChats(Long.MAX_VALUE, maxEntries);
+            ChatHistoryInfo result = new ChatHistoryInfo(roomInfo, maxEntries, chats.first());
+            for (ChatInfo chatInfo : chats.chatInfos()) {
+                result.add(chatInfo);
+            }
+            return result;
+        }
+
+        /**
+         * @return the memory used by this history, in bytes, before it was released, or 0 if it was already released
+         */
+        private synchronized long release() {
+            if (released) {
+                return 0;
+            }
+            long result = bytes();
+            released = true;
+            if (offHeapHistory != null) {
+                ByteBuffer chunk = offHeapHistory.release();
+                if (chunk != null) {
+                    slabs.release(chunk);
+                }
+            }
+            return result;
+        }
+
+        private synchronized void setEncoded(Encoded newEncoded) {
+            if (released) {
+                return;
+            }
+            Encoded oldEncoded = encoded;
+            encoded = newEncoded;
+            long delta = (newEncoded == null ? 0 : newEncoded.bytes()) - (oldEncoded == null ? 0 : oldEncoded.bytes());
+            if (delta != 0) {
+                usedBytes.addAndGet(delta);
+            }
+        }
+
+        private long bytes() {
+            Encoded encoded = this.encoded;
+            long historyBytes = chatHistoryInfo != null ? chatHistoryInfo.getBytes() : slabs.getChunkSize();
+            return historyBytes + (encoded == null ? 0 : encoded.bytes());
         }
-        return roomHistory;
     }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+/**
+ * <p>The metrics of the in-memory chat histories of {@link ChatHistoryService}, exported via JMX.</p>
+ */
+public interface ChatHistoryServiceMXBean {
+    /**
+     * @return the max memory for the in-memory chat histories, in bytes, or a non-positive value for no limit
+     */
+    long getBudgetBytes();
+
+    /**
+     * @return the estimated memory used by the in-memory chat histories, in bytes
+     */
+    long getUsedBytes();
+
+    /**
+     * @return the number of rooms with an in-memory chat history
+     */
+    int getRoomCount();
+
+    /**
+     * @return the number of in-memory chat histories evicted to stay within the budget
+     */
+    long getEvictions();
+
+    /**
+     * @return the direct memory allocated to store the chat histories off-heap, in bytes
+     */
+    long getOffHeapBytes();
+}
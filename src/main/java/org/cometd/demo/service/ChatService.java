@@ -30,7 +30,6 @@ import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.demo.model.ChatInfo;
 import org.cometd.demo.model.RoomChatInfo;
-import org.cometd.demo.model.RoomInfo;
 import org.cometd.demo.model.UserInfo;
 import org.cometd.oort.Oort;
 
@@ -53,14 +52,18 @@ public class ChatService {
     private final UsersService usersService;
     private final RoomsService roomsService;
     private final ChatHistoryArchiveService archiveService;
+    private final WordFilterService wordFilterService;
+    private final Metric publishMetric;
     @Session
     private LocalSession session;
 
-    public ChatService(Oort oort, UsersService usersService, RoomsService roomsService, ChatHistoryArchiveService archiveService) {
+    public ChatService(Oort oort, UsersService usersService, RoomsService roomsService, ChatHistoryArchiveService archiveService, WordFilterService wordFilterService, MetricsService metricsService) {
         this.oort = oort;
         this.usersService = usersService;
         this.roomsService = roomsService;
         this.archiveService = archiveService;
+        this.wordFilterService = wordFilterService;
+        this.publishMetric = metricsService.metric(MetricsService.CHAT_PUBLISH);
     }
 
     @PostConstruct
@@ -76,22 +79,28 @@ public class ChatService {
 
     @Listener("/service/chat")
     public void chat(ServerSession remote, ServerMessage message) {
+        long begin = publishMetric.begin();
         Map<String, Object> data = message.getDataAsMap();
-        String text = (String)data.get(TEXT);
+        long roomId = ((Number)data.get(ROOM_ID)).longValue();
+        RoomIndex.Entry room = roomsService.findRoom(roomId);
+        if (room == null) {
+            remote.deliver(session, "/service/status", "Cannot chat, unknown room", Promise.noop());
+            publishMetric.failed(begin);
+            return;
+        }
 
         // Replace bad words
-        String newText = text.replaceAll("\\b(dang)\\b", "dong");
+        String text = (String)data.get(TEXT);
+        String newText = wordFilterService.filter(text);
 
         // Broadcast the message
         UserInfo userInfo = usersService.getUserInfo(remote);
         ChatInfo chatInfo = new ChatInfo(userInfo, newText);
-        long roomId = ((Number)data.get(ROOM_ID)).longValue();
-        String channelName = "/chat/" + roomId;
-        oort.getBayeuxServer().getChannel(channelName).publish(session, chatInfo, Promise.noop());
+        room.chatChannel().publish(session, chatInfo, Promise.noop());
 
         // Store the chat history
-        RoomInfo roomInfo = roomsService.findRoomInfo(roomId);
-        RoomChatInfo roomChatInfo = new RoomChatInfo(roomInfo, chatInfo);
+        RoomChatInfo roomChatInfo = new RoomChatInfo(room.roomInfo(), chatInfo);
         archiveService.archive(roomChatInfo);
+        publishMetric.succeeded(begin);
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * <p>{@link Metric} measures the rate and the latency of an operation of the services.</p>
+ * <p>Services call {@link #begin()} when the operation starts, and either {@link #succeeded(long)} or
+ * {@link #failed(long)} when it completes, possibly in a callback and in a different thread.</p>
+ * <p>Latencies are recorded without locking in a {@link Recorder}, and periodically rolled by
+ * {@link MetricsService} into the histogram of the last window, from which the percentiles are read.</p>
+ */
+public class Metric implements MetricMXBean {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Recorder recorder = new Recorder(3);
+    private final String name;
+    private Histogram window;
+    private long windowTotal;
+    private long windowNanos = System.nanoTime();
+    private double rate;
+
+    public Metric(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the start time of an operation, to pass to {@link #succeeded(long)} or {@link #failed(long)}
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param begin the start time of the operation returned by {@link #begin()}
+     */
+    public void succeeded(long begin) {
+        count.increment();
+        recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+    }
+
+    /**
+     * @param begin the start time of the operation returned by {@link #begin()}
+     */
+    public void failed(long begin) {
+        failures.increment();
+    }
+
+    /**
+     * <p>Closes the current window, and starts a new one.</p>
+     */
+    synchronized void roll() {
+        window = recorder.getIntervalHistogram(window);
+        long now = System.nanoTime();
+        long total = count.sum() + failures.sum();
+        rate = (total - windowTotal) / (Math.max(1, now - windowNanos) / 1_000_000_000D);
+        windowTotal = total;
+        windowNanos = now;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return getPercentileMicros(50);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return getPercentileMicros(99);
+    }
+
+    @Override
+    public long getP999Micros() {
+        return getPercentileMicros(99.9);
+    }
+
+    @Override
+    public synchronized long getMaxMicros() {
+        return window == null ? 0 : window.getMaxValue();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency at the given percentile in the last window, in microseconds
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        return window == null ? 0 : window.getValueAtPercentile(percentile);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+/**
+ * <p>The rate and latency of an operation of the services, see {@link Metric}, exported via JMX.</p>
+ * <p>Rates and latencies refer to the last window of {@link MetricsService}, while counts are totals.</p>
+ */
+public interface MetricMXBean {
+    /**
+     * @return the number of operations that succeeded
+     */
+    long getCount();
+
+    /**
+     * @return the number of operations that failed
+     */
+    long getFailures();
+
+    /**
+     * @return the operations, successful or failed, per second in the last window
+     */
+    double getRate();
+
+    /**
+     * @return the median latency of the successful operations in the last window, in microseconds
+     */
+    long getP50Micros();
+
+    /**
+     * @return the 99th percentile latency of the successful operations in the last window, in microseconds
+     */
+    long getP99Micros();
+
+    /**
+     * @return the 99.9th percentile latency of the successful operations in the last window, in microseconds
+     */
+    long getP999Micros();
+
+    /**
+     * @return the max latency of the successful operations in the last window, in microseconds
+     */
+    long getMaxMicros();
+}
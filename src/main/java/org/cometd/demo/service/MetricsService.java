@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.cometd.annotation.Service;
+
+/**
+ * <p>{@link MetricsService} holds the {@link Metric}s of the operations of the other services, and
+ * exports them via JMX and in text format.</p>
+ * <p>Every metric is registered as an MBean on the platform {@link MBeanServer}, that is the same used
+ * by the {@code MBeanContainer} configured in {@code jetty-jmx.xml}, so the metrics are available
+ * along with those of Jetty and CometD.</p>
+ * <p>The text format is that of Prometheus, and it is served by {@link org.cometd.demo.MetricsServlet}.</p>
+ * <p>Rates and latency percentiles refer to the last window, whose length is configured at
+ * construction, so that they reflect the recent behavior of the node rather than its whole life.</p>
+ */
+@Service(MetricsService.NAME)
+public class MetricsService {
+    public static final String NAME = "metrics";
+    public static final String ATTRIBUTE = MetricsService.class.getName();
+    public static final String CHAT_PUBLISH = "chat_publish";
+    public static final String ARCHIVE_FORWARD = "archive_forward";
+    public static final String HISTORY_RETRIEVE = "history_retrieve";
+    public static final String ROOM_JOIN = "room_join";
+    public static final String ROOM_CREATE = "room_create";
+    public static final String SESSION_ADD = "session_add";
+    public static final String SESSION_REMOVE = "session_remove";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+    private final String nodeId;
+    private final long window;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param nodeId the id of the local node, to label the metrics
+     * @param window the length, in milliseconds, of the window of rates and latencies
+     */
+    public MetricsService(String nodeId, long window) {
+        this.nodeId = nodeId;
+        this.window = window;
+        for (String name : new String[]{CHAT_PUBLISH, ARCHIVE_FORWARD, HISTORY_RETRIEVE, ROOM_JOIN, ROOM_CREATE, SESSION_ADD, SESSION_REMOVE}) {
+            metrics.put(name, new Metric(name));
+        }
+    }
+
+    @PostConstruct
+    public void construct() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (Metric metric : metrics.values()) {
+            mbeanServer.registerMBean(metric, objectName(metric));
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> metrics.values().forEach(Metric::roll), window, window, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (Metric metric : metrics.values()) {
+            ObjectName objectName = objectName(metric);
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        }
+    }
+
+    private ObjectName objectName(Metric metric) throws Exception {
+        return new ObjectName("org.cometd.demo:type=" + Metric.class.getSimpleName() + ",node=" + ObjectName.quote(nodeId) + ",name=" + metric.getName());
+    }
+
+    /**
+     * @param name the metric name, one of the constants of this class
+     * @return the metric with the given name
+     */
+    public Metric metric(String name) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            throw new IllegalArgumentException("Unknown metric " + name);
+        }
+        return metric;
+    }
+
+    /**
+     * <p>Writes the metrics in the Prometheus text format.</p>
+     *
+     * @param output the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    public void write(Appendable output) throws IOException {
+        String node = "node=\"" + nodeId.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        for (Metric metric : metrics.values()) {
+            String prefix = "chat_demo_" + metric.getName();
+            output.append("# TYPE ").append(prefix).append("_total counter\n");
+            output.append(prefix).append("_total{").append(node).append("} ").append(String.valueOf(metric.getCount())).append('\n');
+            output.append("# TYPE ").append(prefix).append("_failures_total counter\n");
+            output.append(prefix).append("_failures_total{").append(node).append("} ").append(String.valueOf(metric.getFailures())).append('\n');
+            output.append("# TYPE ").append(prefix).append("_rate gauge\n");
+            output.append(prefix).append("_rate{").append(node).append("} ").append(String.format(Locale.ROOT, "%.3f", metric.getRate())).append('\n');
+            output.append("# TYPE ").append(prefix).append("_latency_microseconds gauge\n");
+            for (double quantile : QUANTILES) {
+                output.append(prefix).append("_latency_microseconds{").append(node)
+                        .append(",quantile=\"").append(String.valueOf(quantile)).append("\"} ")
+                        .append(String.valueOf(metric.getPercentileMicros(quantile * 100))).append('\n');
+            }
+        }
+    }
+}
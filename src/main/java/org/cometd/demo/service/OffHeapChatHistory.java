@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.cometd.demo.model.ChatHistoryInfo;
+import org.cometd.demo.model.ChatInfo;
+import org.cometd.demo.model.InfoPool;
+import org.cometd.demo.model.UserInfo;
+
+/**
+ * <p>{@link OffHeapChatHistory} stores the most recent chat messages of a room outside the Java heap,
+ * so that the retained chat messages do not need to be traced and copied by the garbage collector.</p>
+ * <p>Chat messages are encoded in a fixed size chunk of direct memory, used as a circular buffer, with
+ * the same layout of the records of {@link ChatHistoryLog}, without the length, the room id and the position of the previous record;
+ * the oldest chat messages are evicted when there are more than the max number of chat messages,
+ * or when there is no space left in the chunk for a new chat message.</p>
+ * <p>Chat messages are copied to the heap and decoded only when they are retrieved.</p>
+ * <p>Chunks are carved from larger {@link Slabs slabs} of direct memory, and returned to the slabs
+ * when the history is {@link #release() released}, to be reused by the history of another room.</p>
+ */
+public class OffHeapChatHistory {
+    private static final int HEADER_LENGTH = Byte.BYTES + Short.BYTES;
+
+    private final int maxEntries;
+    private final InfoPool infoPool;
+    private final int[] offsets;
+    private final int[] lengths;
+    private ByteBuffer chunk;
+    private long first;
+    private long next;
+    private int head;
+
+    /**
+     * @param chunk      the direct memory where the chat messages are stored
+     * @param maxEntries the max number of chat messages
+     * @param first      the sequence of the first chat message that will be added
+     * @param infoPool   the pool of the canonical users of the node, to decode the chat messages
+     */
+    public OffHeapChatHistory(ByteBuffer chunk, int maxEntries, long first, InfoPool infoPool) {
+        this.chunk = chunk;
+        this.maxEntries = maxEntries;
+        this.infoPool = infoPool;
+        this.offsets = new int[Math.max(0, maxEntries)];
+        this.lengths = new int[offsets.length];
+        this.first = first;
+        this.next = first;
+    }
+
+    /**
+     * @return the sequence of the next chat message, that changes every time a chat message is added
+     */
+    public synchronized long getSequence() {
+        return next;
+    }
+
+    /**
+     * @param chatInfo the chat message to add
+     * @return whether the chat message would be stored by {@link #add(ChatInfo)}
+     */
+    public synchronized boolean accepts(ChatInfo chatInfo) {
+        if (chunk == null) {
+            return false;
+        }
+        UserInfo userInfo = chatInfo.userInfo();
+        // Estimate the UTF-8 length without encoding: at most 3 bytes per char.
+        int maxLength = HEADER_LENGTH + 3 * (userInfo.id().length() + chatInfo.text().length());
+        if (maxEntries == 0 || maxLength <= chunk.capacity()) {
+            return true;
+        }
+        return HEADER_LENGTH + userInfo.id().getBytes(StandardCharsets.UTF_8).length +
+                chatInfo.text().getBytes(StandardCharsets.UTF_8).length <= chunk.capacity();
+    }
+
+    /**
+     * <p>Adds a chat message, advancing the sequence.</p>
+     * <p>Chat messages larger than the chunk are not stored, nor are chat messages
+     * added after this history has been released, and the sequence does not advance:
+     * callers should check whether the chat message is {@link #accepts(ChatInfo) accepted}
+     * before committing to its sequence.</p>
+     *
+     * @param chatInfo the chat message to add
+     * @return whether the chat message has been stored
+     */
+    public boolean add(ChatInfo chatInfo) {
+        UserInfo userInfo = chatInfo.userInfo();
+        byte[] userId = userInfo.id().getBytes(StandardCharsets.UTF_8);
+        byte[] text = chatInfo.text().getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_LENGTH + userId.length + text.length;
+        synchronized (this) {
+            if (chunk == null) {
+                return false;
+            }
+            if (maxEntries == 0) {
+                // Nothing is retained, but the sequence still advances.
+                first = ++next;
+                return true;
+            }
+            if (length > chunk.capacity()) {
+                return false;
+            }
+            if (next - first == maxEntries) {
+                ++first;
+            }
+            int offset = head;
+            if (offset + length > chunk.capacity()) {
+                // Not enough space at the end of the chunk, evict
+                // the oldest chat messages stored there and wrap.
+                while (first < next && offsets[index(first)] >= offset) {
+                    ++first;
+                }
+                offset = 0;
+            }
+            // Evict the oldest chat messages overlapping the space of the new one.
+            while (first < next && offsets[index(first)] >= offset && offsets[index(first)] < offset + length) {
+                ++first;
+            }
+            chunk.put(offset, (byte)userInfo.membership().ordinal())
+                    .putShort(offset + Byte.BYTES, (short)userId.length)
+                    .put(offset + HEADER_LENGTH, userId)
+                    .put(offset + HEADER_LENGTH + userId.length, text);
+            int index = index(next);
+            offsets[index] = offset;
+            lengths[index] = length;
+            head = offset + length;
+            ++next;
+            return true;
+        }
+    }
+
+    /**
+     * @param before the sequence before which chat messages are returned
+     * @param limit  the max number of chat messages to return
+     * @return the most recent chat messages before the given sequence that are still available
+     */
+    public ChatHistoryInfo.Chats getChats(long before, int limit) {
+        byte[] bytes;
+        int[] recordLengths;
+        long start;
+        synchronized (this) {
+            long end = Math.min(before, next);
+            start = Math.max(first, end - limit);
+            if (chunk == null || start >= end) {
+                return new ChatHistoryInfo.Chats(List.of(), Math.max(first, end));
+            }
+            // Copy the records while holding the lock, decode them after releasing it.
+            recordLengths = new int[(int)(end - start)];
+            int total = 0;
+            for (int i = 0; i < recordLengths.length; ++i) {
+                recordLengths[i] = lengths[index(start + i)];
+                total += recordLengths[i];
+            }
+            bytes = new byte[total];
+            int position = 0;
+            for (int i = 0; i < recordLengths.length; ++i) {
+                chunk.get(offsets[index(start + i)], bytes, position, recordLengths[i]);
+                position += recordLengths[i];
+            }
+        }
+        List<ChatInfo> result = new ArrayList<>(recordLengths.length);
+        int position = 0;
+        for (int recordLength : recordLengths) {
+            result.add(ChatHistoryLog.decode(ByteBuffer.wrap(bytes, position, recordLength).slice(), infoPool));
+            position += recordLength;
+        }
+        return new ChatHistoryInfo.Chats(result, start);
+    }
+
+    /**
+     * <p>Discards all the chat messages, and returns the chunk of direct memory.</p>
+     *
+     * @return the chunk of direct memory, or null if this history has already been released
+     */
+    public synchronized ByteBuffer release() {
+        ByteBuffer result = chunk;
+        chunk = null;
+        first = next;
+        return result;
+    }
+
+    private int index(long sequence) {
+        return (int)(sequence % maxEntries);
+    }
+
+    /**
+     * <p>Allocates direct memory in slabs, and carves them into fixed size chunks for {@link OffHeapChatHistory}.</p>
+     * <p>Slabs are never returned to the system; the chunks that are released are reused instead.
+     * The number of chunks in use is bounded by the number of in-memory histories, which in turn
+     * is bounded by the memory budget of {@link ChatHistoryService}.</p>
+     */
+    public static class Slabs {
+        private static final int SLAB_SIZE = 1024 * 1024;
+
+        private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+        private final int chunkSize;
+        private final int chunksPerSlab;
+        private long allocated;
+
+        /**
+         * @param chunkSize the size, in bytes, of the chunks
+         */
+        public Slabs(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerSlab = Math.max(1, SLAB_SIZE / chunkSize);
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * @return the direct memory allocated by the slabs, in bytes
+         */
+        public synchronized long getAllocated() {
+            return allocated;
+        }
+
+        public synchronized ByteBuffer acquire() {
+            if (chunks.isEmpty()) {
+                ByteBuffer slab = ByteBuffer.allocateDirect(chunksPerSlab * chunkSize);
+                allocated += slab.capacity();
+                for (int i = 0; i < chunksPerSlab; ++i) {
+                    chunks.offer(slab.slice(i * chunkSize, chunkSize));
+                }
+            }
+            return chunks.poll();
+        }
+
+        public synchronized void release(ByteBuffer chunk) {
+            // Reuse the most recently released chunks first, that are more likely to be in cache.
+            chunks.push(chunk);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.cometd.demo.model.Membership;
+import org.cometd.demo.model.RoomInfo;
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * <p>{@link RoomCatalog} is the versioned list of rooms that {@link RoomsService} pushes to the users
+ * connected to the local node.</p>
+ * <p>There is one catalog per {@link Membership} tier, containing only the rooms that users of that
+ * tier are allowed to join, so that users do not receive rooms they can never enter.</p>
+ * <p>Every change to the catalog increments its version, and produces a delta that only contains
+ * the rooms that have been added or changed, and the ids of the rooms that have been removed.
+ * Deltas are notified to the broadcaster in version order.</p>
+ * <p>Clients apply deltas to the catalog they already have; when they detect a gap in the
+ * versions, they request a {@link #snapshot(Consumer) snapshot} of the catalog, which contains the first page of
+ * rooms and the total number of rooms; further pages are retrieved via {@link RoomSearchIndex}.</p>
+ * <p>The snapshot is encoded to JSON only once after each change, and the same immutable
+ * encoded form is delivered to all the users that need it until the catalog changes again.</p>
+ */
+public class RoomCatalog {
+    public static final String VERSION = "version";
+    public static final String SNAPSHOT = "snapshot";
+    public static final String ROOMS = "rooms";
+    public static final String REMOVED = "removed";
+    public static final String TOTAL = "total";
+    public static final String CURSOR = "cursor";
+
+    private final Map<Long, RoomInfo> rooms = new TreeMap<>();
+    private final Membership membership;
+    private final int pageSize;
+    private final Consumer<Map<String, Object>> broadcaster;
+    private final Function<Object, String> encoder;
+    private long version;
+    private JSON.Literal snapshot;
+
+    /**
+     * @param membership  the membership tier of the users of this catalog
+     * @param pageSize    the max number of rooms in a snapshot
+     * @param broadcaster the function that broadcasts deltas, invoked in version order
+     * @param encoder     the function that encodes snapshots to JSON
+     */
+    public RoomCatalog(Membership membership, int pageSize, Consumer<Map<String, Object>> broadcaster, Function<Object, String> encoder) {
+        this.membership = membership;
+        this.pageSize = pageSize;
+        this.broadcaster = broadcaster;
+        this.encoder = encoder;
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    /**
+     * @param roomInfo the room to test
+     * @return whether users of this catalog's membership tier can join the given room
+     */
+    public boolean accepts(RoomInfo roomInfo) {
+        return roomInfo.membership().implies(membership);
+    }
+
+    /**
+     * <p>Adds or replaces a room, broadcasting a delta if the room is new or changed.</p>
+     * <p>Rooms that are not {@link #accepts(RoomInfo) accepted} by this catalog are removed instead.</p>
+     *
+     * @param roomInfo the room to add or replace
+     */
+    public synchronized void put(RoomInfo roomInfo) {
+        if (!accepts(roomInfo)) {
+            remove(roomInfo);
+            return;
+        }
+        RoomInfo existing = rooms.put(roomInfo.id(), roomInfo);
+        // RoomInfo.equals() only compares the id.
+        if (existing != null && Objects.equals(existing.name(), roomInfo.name()) && existing.membership() == roomInfo.membership()) {
+            return;
+        }
+        snapshot = null;
+        Map<String, Object> delta = newMessage(++version);
+        delta.put(ROOMS, List.of(roomInfo));
+        broadcaster.accept(delta);
+    }
+
+    /**
+     * <p>Removes a room, broadcasting a delta if the room was present.</p>
+     *
+     * @param roomInfo the room to remove
+     */
+    public synchronized void remove(RoomInfo roomInfo) {
+        if (rooms.remove(roomInfo.id()) == null) {
+            return;
+        }
+        snapshot = null;
+        Map<String, Object> delta = newMessage(++version);
+        delta.put(REMOVED, List.of(roomInfo.id()));
+        broadcaster.accept(delta);
+    }
+
+    /**
+     * <p>Passes the first page of the catalog at the current version, already encoded to JSON, to the
+     * given deliverer.</p>
+     * <p>The deliverer is invoked while holding the same lock that orders the deltas, so that a delta
+     * with a later version cannot be delivered before the snapshot.</p>
+     *
+     * @param deliverer the function that delivers the snapshot
+     */
+    public synchronized void snapshot(Consumer<JSON.Literal> deliverer) {
+        if (snapshot == null) {
+            Map<String, Object> message = newMessage(version);
+            message.put(SNAPSHOT, true);
+            List<RoomInfo> page = new ArrayList<>(Math.min(pageSize, rooms.size()));
+            for (RoomInfo roomInfo : rooms.values()) {
+                if (page.size() == pageSize) {
+                    message.put(CURSOR, page.get(page.size() - 1).id());
+                    break;
+                }
+                page.add(roomInfo);
+            }
+            message.put(ROOMS, page);
+            snapshot = new JSON.Literal(encoder.apply(message));
+        }
+        deliverer.accept(snapshot);
+    }
+
+    private Map<String, Object> newMessage(long version) {
+        Map<String, Object> message = new HashMap<>(8);
+        message.put(VERSION, version);
+        message.put(TOTAL, rooms.size());
+        return message;
+    }
+}
@@ -18,6 +18,11 @@ package org.cometd.demo.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
 import java.util.Properties;
 
@@ -31,6 +36,7 @@ import org.cometd.bayeux.server.LocalSession;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.demo.Node;
+import org.cometd.demo.model.InfoPool;
 import org.cometd.demo.model.Membership;
 import org.cometd.demo.model.RoomInfo;
 import org.cometd.oort.Oort;
@@ -44,19 +50,43 @@ import org.slf4j.LoggerFactory;
  * unique room {@code id}s, this service makes use of an {@link OortPrimaryLong} as id generator, which is
  * bootstrapped by reading a node-specific file that marks the node that can read it as the "master" node
  * for the id generator.</p>
+ * <p>Room ids must never be reused, also across restarts, because the chat history log of the nodes
+ * outlives the rooms. The primary node therefore persists, in the room ids file, a reservation of
+ * {@value #ROOM_IDS_RESERVE} ids above the highest room id it has seen in the cluster, and restarts the
+ * id generator from the reservation. The reservation is renewed when half of it has been used, so that
+ * the ids allocated by the primary node, and not yet seen as rooms when it stops, are covered as well.</p>
+ * <p>The time to create a room, including the generation of its id, is measured by the
+ * {@link MetricsService#ROOM_CREATE} metric.</p>
  */
 @Service(RoomCreateService.NAME)
 public class RoomCreateService {
     public static final String NAME = "room_create";
     private static final Logger LOGGER = LoggerFactory.getLogger(RoomCreateService.class);
+    private static final long ROOM_IDS_RESERVE = 1024;
 
     private final OortPrimaryLong roomIds;
     private final RoomsService roomsService;
+    private final Metric createMetric;
+    private final InfoPool infoPool;
+    private final Path roomIdsFile;
+    private long reserved;
     @Session
     private LocalSession session;
 
-    public RoomCreateService(Oort oort, Node node, RoomsService roomsService) throws IOException {
+    /**
+     * @param oort           the Oort instance
+     * @param node           the local node
+     * @param roomsService   the service where the new rooms are created
+     * @param metricsService the service that measures the room creations
+     * @param infoPool       the pool of the canonical users and rooms of the node
+     * @param roomIdsFile    the file where the primary node persists the room ids reservation,
+     *                       or null to restart the room ids from the node-specific resource
+     * @throws IOException if the room ids cannot be read
+     */
+    public RoomCreateService(Oort oort, Node node, RoomsService roomsService, MetricsService metricsService, InfoPool infoPool, String roomIdsFile) throws IOException {
         this.roomsService = roomsService;
+        this.createMetric = metricsService.metric(MetricsService.ROOM_CREATE);
+        this.infoPool = infoPool;
         String name = "room_ids";
         boolean master = false;
         long initial = 0;
@@ -69,14 +99,66 @@ public class RoomCreateService {
                 initial = Long.parseLong(properties.getProperty("value"));
             }
         }
+        this.roomIdsFile = master && roomIdsFile != null ? Paths.get(roomIdsFile) : null;
+        if (this.roomIdsFile != null && Files.exists(this.roomIdsFile)) {
+            initial = Math.max(initial, loadRoomIds(this.roomIdsFile));
+        }
+        reserved = initial;
         roomIds = new OortPrimaryLong(oort, name, master, initial);
     }
 
+    private static long loadRoomIds(Path file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file)) {
+            Properties properties = new Properties();
+            properties.load(stream);
+            return Long.parseLong(properties.getProperty("value"));
+        }
+    }
+
     @PostConstruct
     private void construct() throws Exception {
+        if (roomIdsFile != null) {
+            // Reserve the ids before any of them is allocated.
+            reserve(reserved);
+            roomsService.addRoomListener(this::roomAdded);
+        }
         roomIds.start();
     }
 
+    private void roomAdded(RoomInfo roomInfo) {
+        long roomId = roomInfo.id();
+        synchronized (this) {
+            if (roomId <= reserved - ROOM_IDS_RESERVE / 2) {
+                return;
+            }
+        }
+        try {
+            reserve(roomId);
+        } catch (IOException x) {
+            LOGGER.warn("Could not persist the room ids reservation in {}", roomIdsFile, x);
+        }
+    }
+
+    private synchronized void reserve(long roomId) throws IOException {
+        long value = roomId + ROOM_IDS_RESERVE;
+        if (value <= reserved && Files.exists(roomIdsFile)) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty("value", String.valueOf(value));
+        Path parent = roomIdsFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, roomIdsFile.getFileName().toString(), ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temp)) {
+            properties.store(stream, "Room ids reserved by the primary node");
+        }
+        Files.move(temp, roomIdsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        reserved = value;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reserved room ids up to {}", value);
+        }
+    }
+
     @PreDestroy
     private void destroy() throws Exception {
         roomIds.stop();
@@ -86,21 +168,27 @@ public class RoomCreateService {
     public void createRoom(final ServerSession remote, final ServerMessage message) {
         Map<String, Object> data = message.getDataAsMap();
         final String roomName = (String)data.get("roomName");
+        final long begin = createMetric.begin();
         roomIds.addAndGet(1, new OortPrimaryLong.Callback() {
             @Override
             public void succeeded(Long result) {
-                RoomInfo roomInfo = new RoomInfo(result, roomName, Membership.BRONZE);
+                RoomInfo roomInfo = infoPool.room(result, roomName, Membership.BRONZE);
+                if (roomIdsFile != null) {
+                    // Ids allocated by this node are seen here before they are seen as rooms.
+                    roomAdded(roomInfo);
+                }
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Creating room {}", roomInfo);
                 }
                 roomsService.createRoomInfo(roomInfo);
                 remote.deliver(session, message.getChannel(), roomInfo, Promise.noop());
-                roomsService.broadcastRooms();
+                createMetric.succeeded(begin);
             }
 
             @Override
             public void failed(Object failure) {
                 remote.deliver(session, "/service/status", String.valueOf(failure), Promise.noop());
+                createMetric.failed(begin);
             }
         });
     }
@@ -25,6 +25,7 @@ import org.cometd.annotation.Service;
 import org.cometd.bayeux.Promise;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
+import org.cometd.demo.model.InfoPool;
 import org.cometd.demo.model.RoomInfo;
 import org.cometd.demo.model.UserInfo;
 import org.cometd.oort.Oort;
@@ -53,12 +54,14 @@ public class RoomEditService extends OortService<RoomInfo, OortService.ServerCon
     private final UsersService usersService;
     private final RoomsService roomsService;
     private final RoomMembersService membersService;
+    private final InfoPool infoPool;
 
-    public RoomEditService(Oort oort, UsersService usersService, RoomsService roomsService, RoomMembersService membersService) {
+    public RoomEditService(Oort oort, UsersService usersService, RoomsService roomsService, RoomMembersService membersService, InfoPool infoPool) {
         super(oort, NAME);
         this.usersService = usersService;
         this.roomsService = roomsService;
         this.membersService = membersService;
+        this.infoPool = infoPool;
     }
 
     @PostConstruct
@@ -99,7 +102,7 @@ public class RoomEditService extends OortService<RoomInfo, OortService.ServerCon
                 if (membersService.isMember(roomInfo, userInfo)) {
                     String newName = (String)data.get(ROOM_NAME);
                     if (newName != null) {
-                        RoomInfo newRoomInfo = new RoomInfo(roomInfo.id(), newName, roomInfo.membership());
+                        RoomInfo newRoomInfo = infoPool.room(roomInfo.id(), newName, roomInfo.membership());
                         roomsService.replaceRoomInfo(newRoomInfo);
                         return Result.success(newRoomInfo);
                     } else {
@@ -123,7 +126,6 @@ public class RoomEditService extends OortService<RoomInfo, OortService.ServerCon
         UserInfo userInfo = usersService.getUserInfo(session);
         LOGGER.debug("Delivering room to {}: {}", userInfo, roomInfo);
         session.deliver(getLocalSession(), context.getServerMessage().getChannel(), roomInfo, Promise.noop());
-        roomsService.broadcastRooms();
     }
 
     @Override
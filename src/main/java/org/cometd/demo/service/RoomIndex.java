@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.demo.model.RoomInfo;
+
+/**
+ * <p>{@link RoomIndex} is a node-local index of all the rooms of the cluster, keyed by the
+ * primitive {@code long} room id.</p>
+ * <p>It is an open addressing hash table, so that lookups are a single probe sequence that
+ * does not box the room id nor allocate.
+ * Lookups do not lock: modifications are serialized, and each slot is replaced atomically
+ * with an immutable {@link Entry}.</p>
+ */
+public class RoomIndex {
+    private static final Entry TOMBSTONE = new Entry(0, null, null, false, null);
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    // Guarded by this.
+    private int size;
+    // The number of non-null slots, including tombstones; guarded by this.
+    private int used;
+
+    /**
+     * @param roomId the room id
+     * @return the entry for the given room id, or null if there is no such room
+     */
+    public Entry get(long roomId) {
+        AtomicReferenceArray<Entry> table = this.table;
+        int mask = table.length() - 1;
+        int index = hash(roomId) & mask;
+        while (true) {
+            Entry entry = table.get(index);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != TOMBSTONE && entry.id() == roomId) {
+                return entry;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @param entry the entry to add or replace
+     * @return the previous entry with the same room id, or null if there was none
+     */
+    public synchronized Entry put(Entry entry) {
+        AtomicReferenceArray<Entry> table = this.table;
+        int mask = table.length() - 1;
+        int index = hash(entry.id()) & mask;
+        int free = -1;
+        while (true) {
+            Entry existing = table.get(index);
+            if (existing == null) {
+                break;
+            }
+            if (existing == TOMBSTONE) {
+                if (free < 0) {
+                    free = index;
+                }
+            } else if (existing.id() == entry.id()) {
+                table.set(index, entry);
+                return existing;
+            }
+            index = (index + 1) & mask;
+        }
+        if (free < 0) {
+            free = index;
+            ++used;
+        }
+        table.set(free, entry);
+        ++size;
+        if (used > table.length() * 3 / 4) {
+            rehash();
+        }
+        return null;
+    }
+
+    /**
+     * @param roomId  the room id
+     * @param oortURL the Oort URL of the node that owns the room
+     * @return the removed entry, or null if there was no such room owned by the given node
+     */
+    public synchronized Entry remove(long roomId, String oortURL) {
+        AtomicReferenceArray<Entry> table = this.table;
+        int mask = table.length() - 1;
+        int index = hash(roomId) & mask;
+        while (true) {
+            Entry entry = table.get(index);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != TOMBSTONE && entry.id() == roomId) {
+                if (!entry.oortURL().equals(oortURL)) {
+                    return null;
+                }
+                table.set(index, TOMBSTONE);
+                --size;
+                return entry;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * <p>Replaces, in place, the entries of the rooms owned by the given node.</p>
+     *
+     * @param oortURL  the Oort URL of a node
+     * @param replacer the function that returns the replacement of an entry, with the same room id,
+     *                 or null to remove the entry
+     * @return the removed entries of the rooms owned by the given node
+     */
+    public synchronized List<Entry> replaceAll(String oortURL, UnaryOperator<Entry> replacer) {
+        List<Entry> result = new ArrayList<>();
+        AtomicReferenceArray<Entry> table = this.table;
+        for (int i = 0; i < table.length(); ++i) {
+            Entry entry = table.get(i);
+            if (entry != null && entry != TOMBSTONE && entry.oortURL().equals(oortURL)) {
+                Entry replacement = replacer.apply(entry);
+                if (replacement == null) {
+                    table.set(i, TOMBSTONE);
+                    --size;
+                    result.add(entry);
+                } else {
+                    table.set(i, replacement);
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void rehash() {
+        AtomicReferenceArray<Entry> oldTable = table;
+        int capacity = MIN_CAPACITY;
+        while (size > capacity * 3 / 8) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Entry> newTable = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldTable.length(); ++i) {
+            Entry entry = oldTable.get(i);
+            if (entry != null && entry != TOMBSTONE) {
+                int index = hash(entry.id()) & mask;
+                while (newTable.get(index) != null) {
+                    index = (index + 1) & mask;
+                }
+                newTable.set(index, entry);
+            }
+        }
+        used = size;
+        // Publish the new table only when it is complete.
+        table = newTable;
+    }
+
+    private static int hash(long roomId) {
+        int hash = Long.hashCode(roomId) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param id          the room id
+     * @param roomInfo    the room
+     * @param oortURL     the Oort URL of the node that owns the room
+     * @param local       whether the room is owned by the local node
+     * @param chatChannel the channel where the room chat messages are published
+     */
+    public record Entry(long id, RoomInfo roomInfo, String oortURL, boolean local, ServerChannel chatChannel)
+    {
+    }
+}
@@ -39,6 +39,8 @@ import org.slf4j.LoggerFactory;
  * <p>If, for example, {@link RoomInfo} did not have the membership information, we would have needed to forward
  * the join action to the node that owned the room (which would have had the membership information locally).</p>
  * <p>Because joining a room is local to a node, {@link RoomLeaveService} must work locally too.</p>
+ * <p>The time to join a room, from the join message until the room is delivered to the user after the
+ * membership has been shared, is measured by the {@link MetricsService#ROOM_JOIN} metric.</p>
  */
 @Service(RoomJoinService.NAME)
 public class RoomJoinService {
@@ -50,14 +52,16 @@ public class RoomJoinService {
     private final RoomsService roomsService;
     private final RoomMembersService membersService;
     private final ChatHistoryRequestService historyService;
+    private final Metric joinMetric;
     @Session
     private LocalSession session;
 
-    public RoomJoinService(UsersService usersService, RoomsService roomsService, RoomMembersService membersService, ChatHistoryRequestService historyService) {
+    public RoomJoinService(UsersService usersService, RoomsService roomsService, RoomMembersService membersService, ChatHistoryRequestService historyService, MetricsService metricsService) {
         this.usersService = usersService;
         this.roomsService = roomsService;
         this.membersService = membersService;
         this.historyService = historyService;
+        this.joinMetric = metricsService.metric(MetricsService.ROOM_JOIN);
     }
 
     /**
@@ -68,6 +72,7 @@ public class RoomJoinService {
      */
     @Listener("/service/room/join")
     public void joinRoom(ServerSession remote, ServerMessage message) {
+        long begin = joinMetric.begin();
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Join room request from {}: {}", remote, message);
         }
@@ -92,24 +97,26 @@ public class RoomJoinService {
                             remote.deliver(session, message.getChannel(), roomInfo, Promise.noop());
                             membersService.deliverMembers(remote, userInfo, roomInfo);
                             historyService.deliverChatHistory(remote, roomInfo);
+                            joinMetric.succeeded(begin);
                         }
                         else
                         {
-                            joinFailed(remote, "Cannot join room, no members for room " + roomInfo);
+                            joinFailed(remote, "Cannot join room, no members for room " + roomInfo, begin);
                         }
                     });
                 } else {
-                    joinFailed(remote, "Cannot join room, no permission to join room " + roomInfo);
+                    joinFailed(remote, "Cannot join room, no permission to join room " + roomInfo, begin);
                 }
             } else {
-                joinFailed(remote, "Cannot join room, unknown user");
+                joinFailed(remote, "Cannot join room, unknown user", begin);
             }
         } else {
-            joinFailed(remote, "Cannot join room, unknown room");
+            joinFailed(remote, "Cannot join room, unknown room", begin);
         }
     }
 
-    private void joinFailed(ServerSession remote, String message) {
+    private void joinFailed(ServerSession remote, String message, long begin) {
         remote.deliver(session, "/service/status", message, Promise.noop());
+        joinMetric.failed(begin);
     }
 }
@@ -16,12 +16,20 @@
 
 package org.cometd.demo.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import jakarta.annotation.PostConstruct;
@@ -37,40 +45,73 @@ import org.cometd.bayeux.server.ServerSession;
 import org.cometd.demo.model.RoomInfo;
 import org.cometd.demo.model.UserInfo;
 import org.cometd.oort.Oort;
-import org.cometd.oort.OortList;
-import org.cometd.oort.OortObjectFactories;
-import org.cometd.oort.OortObjectMergers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * <p>{@link RoomMembersService} maintains the members list for each room.</p>
+ * <p>{@link RoomMembersService} maintains the members set for each room.</p>
+ * <p>The members of all rooms are stored in a {@link RoomMembersStore}, keyed by room id and user id,
+ * so that joining a room twice does not duplicate the member, and checking whether a user is a member
+ * does not scan the members.</p>
  * <p>Every time a room is created/destroyed, this service is informed and will create/destroy the
- * members list for that room, see {@link #roomAdded(RoomInfo)} and {@link #roomRemoved(RoomInfo)}.</p>
+ * members channel for that room, see {@link #roomAdded(RoomInfo)} and {@link #roomRemoved(RoomInfo)}.</p>
  * <p>This service registers itself as a {@link BayeuxServer.SessionListener} in
- * order to be notified when users disconnect, and update the member list accordingly.</p>
+ * order to be notified when users disconnect, and update the member list accordingly.
+ * The rooms joined by each user via the local node are tracked, so that when users disconnect
+ * only the member lists of the rooms they actually joined are updated.</p>
  * <p>When a user joins or leaves a room, a message is broadcast using standard Oort features
  * via {@link Oort#observeChannel(String)}, see {@link #construct()} to all users of all nodes.
  * For an alternative way of notifying all users of all nodes, see discussion at {@link RoomsService}.</p>
+ * <p>Member changes are broadcast as {@code {"join":[...],"leave":[...]}} messages.
+ * When the batch size is greater than one, the joins and leaves of a room are accumulated and
+ * broadcast in a single message when either the batch size is reached or the flush interval
+ * expires, whichever comes first, so that bursts of joins do not flood the members of the room.</p>
  */
 @Service(RoomMembersService.NAME)
 public class RoomMembersService implements BayeuxServer.SessionListener {
     public static final String NAME = "room_members";
+    public static final String JOIN = "join";
+    public static final String LEAVE = "leave";
     private static final Logger LOGGER = LoggerFactory.getLogger(RoomMembersService.class);
 
-    private final ConcurrentMap<RoomInfo, OortList<UserInfo>> roomToMembers = new ConcurrentHashMap<>();
+    private final Set<RoomInfo> rooms = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Set<RoomInfo>> userToRooms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<RoomInfo, Batch> batches = new ConcurrentHashMap<>();
     private final Oort oort;
     private final UsersService usersService;
+    private final RoomMembersStore store;
+    private final int batchSize;
+    private final long flushInterval;
     @Session
     private LocalSession session;
+    private ScheduledExecutorService scheduler;
 
-    public RoomMembersService(Oort oort, UsersService usersService) {
+    /**
+     * @param oort          the Oort instance
+     * @param usersService  the service to find users
+     * @param partitions    the number of replicated partitions storing the members of all rooms
+     * @param batchSize     the max number of member changes broadcast together, or 1 to disable batching
+     * @param flushInterval the max time, in milliseconds, a member change waits in a batch before being broadcast
+     */
+    public RoomMembersService(Oort oort, UsersService usersService, int partitions, int batchSize, long flushInterval) {
         this.oort = oort;
         this.usersService = usersService;
+        this.store = new RoomMembersStore(oort, "members", partitions);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
     }
 
     @PostConstruct
-    private void construct() {
+    private void construct() throws Exception {
+        store.start();
+        if (isBatching()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
         // By observing /members/* we can broadcast member changes to all clients of all nodes
         // from the node that owns the room. This solution is the one that requires less code.
         // An alternative solution is to have a listener for Oort Objects events on member changes,
@@ -84,9 +125,18 @@ public class RoomMembersService implements BayeuxServer.SessionListener {
     }
 
     @PreDestroy
-    private void destroy() {
+    private void destroy() throws Exception {
         oort.getBayeuxServer().removeListener(this);
+        if (scheduler != null) {
+            batches.values().forEach(Batch::flush);
+            scheduler.shutdownNow();
+        }
         oort.deobserveChannel("/members/*");
+        store.stop();
+    }
+
+    private boolean isBatching() {
+        return batchSize > 1 && flushInterval > 0;
     }
 
     @Override
@@ -95,75 +145,82 @@ public class RoomMembersService implements BayeuxServer.SessionListener {
         UserInfo userInfo = usersService.getUserInfo(session);
         if (userInfo != null)
         {
-            for (Map.Entry<RoomInfo, OortList<UserInfo>> roomMembers : roomToMembers.entrySet())
+            Set<RoomInfo> joinedRooms = userToRooms.remove(userInfo.id());
+            if (joinedRooms != null)
             {
-                leave(roomMembers.getValue(), roomMembers.getKey(), userInfo);
+                for (RoomInfo roomInfo : joinedRooms)
+                {
+                    store.leave(roomInfo.id(), userInfo, removed -> left(roomInfo, userInfo, removed));
+                }
             }
         }
     }
 
     public void join(RoomInfo roomInfo, UserInfo userInfo, Consumer<Boolean> result) {
-        OortList<UserInfo> roomMembers = roomToMembers.get(roomInfo);
-        if (roomMembers != null) {
-            // We have a shared members list, update it.
-            roomMembers.addAndShare(r -> {
-                if (r) {
+        if (rooms.contains(roomInfo)) {
+            // Update the shared members.
+            store.join(roomInfo.id(), userInfo, joined -> {
+                userToRooms.computeIfAbsent(userInfo.id(), key -> ConcurrentHashMap.newKeySet()).add(roomInfo);
+                // Joining again a room is not a change.
+                if (joined) {
                     if (LOGGER.isDebugEnabled()) {
                         LOGGER.debug("{} joined {}", userInfo, roomInfo);
                     }
                     // Broadcast the change to all clients of all nodes
-                    broadcastMembers(roomInfo, userInfo, "join");
+                    broadcastMembers(roomInfo, userInfo, true);
                 }
-                result.accept(r);
-            }, userInfo);
+                result.accept(true);
+            });
         } else {
             result.accept(false);
         }
     }
 
     public void leave(RoomInfo roomInfo, UserInfo userInfo) {
-        OortList<UserInfo> roomMembers = roomToMembers.get(roomInfo);
-        if (roomMembers != null) {
-            leave(roomMembers, roomInfo, userInfo);
+        if (rooms.contains(roomInfo)) {
+            forget(userInfo, roomInfo);
+            store.leave(roomInfo.id(), userInfo, removed -> left(roomInfo, userInfo, removed));
         }
     }
 
-    private void leave(OortList<UserInfo> roomMembers, RoomInfo roomInfo, UserInfo userInfo) {
-        roomMembers.removeAndShare(result -> left(roomInfo, userInfo), userInfo);
+    private void forget(UserInfo userInfo, RoomInfo roomInfo) {
+        userToRooms.computeIfPresent(userInfo.id(), (key, joinedRooms) -> {
+            joinedRooms.remove(roomInfo);
+            return joinedRooms.isEmpty() ? null : joinedRooms;
+        });
     }
 
-    private void left(RoomInfo roomInfo, UserInfo userInfo) {
+    private void left(RoomInfo roomInfo, UserInfo userInfo, boolean removed) {
+        if (!removed) {
+            return;
+        }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("{} left {}", userInfo, roomInfo);
         }
         // Broadcast the change to all clients of all nodes
-        broadcastMembers(roomInfo, userInfo, "leave");
+        broadcastMembers(roomInfo, userInfo, false);
     }
 
     public void roomAdded(RoomInfo roomInfo) {
-        String name = "members_room_" + roomInfo.id();
-        OortList<UserInfo> roomMembers = new OortList<>(oort, name, OortObjectFactories.forConcurrentList());
-        if (roomToMembers.putIfAbsent(roomInfo, roomMembers) == null) {
+        if (rooms.add(roomInfo)) {
             oort.getBayeuxServer().createChannelIfAbsent(getChannel(roomInfo), new ConfigurableServerChannel.Initializer.Persistent());
-            startMembers(roomMembers);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Constructed room members for {}", roomInfo);
             }
         }
     }
 
-    private void startMembers(OortList<UserInfo> roomMembers) {
-        try {
-            roomMembers.start();
-        } catch (Exception x) {
-            throw new RuntimeException(x);
-        }
-    }
-
     public void roomRemoved(RoomInfo roomInfo) {
-        OortList<UserInfo> roomMembers = roomToMembers.remove(roomInfo);
-        if (roomMembers != null) {
-            stopMembers(roomMembers);
+        if (rooms.remove(roomInfo)) {
+            // The room is removed before its batch, see broadcastMembers().
+            Batch batch = batches.remove(roomInfo);
+            if (batch != null) {
+                batch.discard();
+            }
+            // Only the members that joined via this node are removed by this node.
+            for (UserInfo userInfo : store.removeLocal(roomInfo.id())) {
+                forget(userInfo, roomInfo);
+            }
             oort.getBayeuxServer().getChannel(getChannel(roomInfo)).setPersistent(false);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Destroyed room members for {}", roomInfo);
@@ -171,44 +228,115 @@ public class RoomMembersService implements BayeuxServer.SessionListener {
         }
     }
 
-    private void stopMembers(OortList<UserInfo> roomMembers) {
-        try {
-            roomMembers.stop();
-        } catch (Exception x) {
-            throw new RuntimeException(x);
-        }
-    }
-
     private String getChannel(RoomInfo roomInfo) {
         return "/members/" + roomInfo.id();
     }
 
-    private void broadcastMembers(RoomInfo roomInfo, UserInfo userInfo, String action) {
+    private void broadcastMembers(RoomInfo roomInfo, UserInfo userInfo, boolean join) {
+        if (isBatching()) {
+            // Checking the room inside computeIfAbsent() is atomic with respect to the
+            // removal of the batch in roomRemoved(), so removed rooms never get a batch.
+            Batch batch = batches.computeIfAbsent(roomInfo, key -> rooms.contains(key) ? new Batch(key) : null);
+            if (batch != null) {
+                batch.add(userInfo, join);
+            }
+        } else if (rooms.contains(roomInfo)) {
+            List<UserInfo> members = Collections.singletonList(userInfo);
+            broadcastMembers(roomInfo, join ? members : List.of(), join ? List.of() : members);
+        }
+    }
+
+    private void broadcastMembers(RoomInfo roomInfo, Collection<UserInfo> joined, Collection<UserInfo> left) {
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Broadcast member {}: {} on {}", action, userInfo, roomInfo);
+            LOGGER.debug("Broadcast members joined: {}, left: {} on {}", joined, left, roomInfo);
         }
         Map<String, Object> data = new HashMap<>(2);
-        data.put("action", action);
-        data.put("members", Collections.singletonList(userInfo));
+        if (!joined.isEmpty()) {
+            data.put(JOIN, joined);
+        }
+        if (!left.isEmpty()) {
+            data.put(LEAVE, left);
+        }
         oort.getBayeuxServer().getChannel(getChannel(roomInfo)).publish(session, data, Promise.noop());
     }
 
     public void deliverMembers(ServerSession session, UserInfo userInfo, RoomInfo roomInfo) {
-        OortList<UserInfo> roomMembers = roomToMembers.get(roomInfo);
-        if (roomMembers != null) {
-            List<UserInfo> members = roomMembers.merge(OortObjectMergers.listUnion());
+        if (rooms.contains(roomInfo)) {
+            List<UserInfo> members = store.getMembers(roomInfo.id());
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Delivering members to {}: {} on {}", userInfo, members, roomInfo);
             }
             Map<String, Object> data = new HashMap<>(2);
-            data.put("action", "join");
-            data.put("members", members);
+            data.put(JOIN, members);
             session.deliver(this.session, getChannel(roomInfo), data, Promise.noop());
         }
     }
 
     public boolean isMember(RoomInfo roomInfo, UserInfo userInfo) {
-        OortList<UserInfo> roomMembers = roomToMembers.get(roomInfo);
-        return roomMembers != null && roomMembers.isPresent(userInfo);
+        return store.isMember(roomInfo.id(), userInfo.id());
+    }
+
+    /**
+     * <p>The member changes of a room waiting to be broadcast.</p>
+     * <p>A user that joins and then leaves a room within the same batch, or vice versa,
+     * cancels out, so that the joins and leaves of a batch never contain the same user.</p>
+     */
+    private class Batch {
+        private final RoomInfo roomInfo;
+        private Map<String, UserInfo> joined = new LinkedHashMap<>();
+        private Map<String, UserInfo> left = new LinkedHashMap<>();
+        private ScheduledFuture<?> task;
+        private boolean discarded;
+
+        private Batch(RoomInfo roomInfo) {
+            this.roomInfo = roomInfo;
+        }
+
+        private synchronized void add(UserInfo userInfo, boolean join) {
+            if (discarded) {
+                // The room has been removed.
+                return;
+            }
+            String userId = userInfo.id();
+            if (join) {
+                if (left.remove(userId) == null) {
+                    joined.put(userId, userInfo);
+                }
+            } else {
+                if (joined.remove(userId) == null) {
+                    left.put(userId, userInfo);
+                }
+            }
+            if (joined.size() + left.size() >= batchSize) {
+                flush();
+            } else if (task == null) {
+                task = scheduler.schedule(this::flush, flushInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void flush() {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            Map<String, UserInfo> joinedBatch = joined;
+            Map<String, UserInfo> leftBatch = left;
+            joined = new LinkedHashMap<>();
+            left = new LinkedHashMap<>();
+            broadcastMembers(roomInfo, new ArrayList<>(joinedBatch.values()), new ArrayList<>(leftBatch.values()));
+        }
+
+        private synchronized void discard() {
+            if (task != null) {
+                task.cancel(false);
+                task = null;
+            }
+            discarded = true;
+            joined.clear();
+            left.clear();
+        }
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import org.cometd.demo.model.UserInfo;
+import org.cometd.oort.Oort;
+import org.cometd.oort.OortMap;
+import org.cometd.oort.OortObject;
+import org.cometd.oort.OortObjectFactories;
+import org.cometd.oort.OortStringMap;
+
+/**
+ * <p>{@link RoomMembersStore} stores the members of all the rooms of the cluster in a fixed number
+ * of replicated partitions, rather than in one replicated object per room.</p>
+ * <p>Each member of a room is an entry of the partition of that room, keyed by room id and user id,
+ * so that the cost of a room is that of its members, and joining the cluster only requires
+ * to synchronize the partitions.</p>
+ * <p>The entries of the partitions are indexed locally by room id, so that the members of a room
+ * are found without scanning the partition of the room.</p>
+ * <p>A user may be a member of a room via more than one node, for example when connected to several
+ * nodes; the index tracks the nodes of each member, and a user stops being a member of a room only
+ * when no node has an entry for that user in that room.</p>
+ */
+public class RoomMembersStore implements OortMap.EntryListener<String, UserInfo> {
+    private static final char SEPARATOR = '/';
+
+    private final ConcurrentMap<Long, ConcurrentMap<String, Member>> index = new ConcurrentHashMap<>();
+    private final Oort oort;
+    private final List<OortStringMap<UserInfo>> partitions;
+
+    /**
+     * @param oort       the Oort instance
+     * @param name       the prefix of the names of the partitions
+     * @param partitions the number of partitions
+     */
+    public RoomMembersStore(Oort oort, String name, int partitions) {
+        this.oort = oort;
+        this.partitions = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; ++i) {
+            this.partitions.add(new OortStringMap<>(oort, name + "_" + i, OortObjectFactories.forConcurrentMap()));
+        }
+    }
+
+    public void start() throws Exception {
+        for (OortStringMap<UserInfo> partition : partitions) {
+            partition.addListener(new OortMap.DeltaListener<>(partition));
+            partition.addListener(new OortObject.Listener<>() {
+                @Override
+                public void onRemoved(OortObject.Info<ConcurrentMap<String, UserInfo>> info) {
+                    // A node left the cluster, the users that joined via that node are gone.
+                    for (String key : info.getObject().keySet()) {
+                        unindex(key, info.getOortURL());
+                    }
+                }
+            });
+            partition.addEntryListener(this);
+            partition.start();
+        }
+    }
+
+    public void stop() throws Exception {
+        for (OortStringMap<UserInfo> partition : partitions) {
+            partition.stop();
+        }
+    }
+
+    /**
+     * @param roomId   the room id
+     * @param userInfo the user that joins the room
+     * @param result   the callback notified with whether the user was not already a member via any node
+     */
+    public void join(long roomId, UserInfo userInfo, Consumer<Boolean> result) {
+        String userId = userInfo.id();
+        partitionFor(roomId).putIfAbsentAndShare(key(roomId, userId), userInfo, previous -> result.accept(previous == null && !isMemberViaOtherNodes(roomId, userId)));
+    }
+
+    /**
+     * @param roomId   the room id
+     * @param userInfo the user that leaves the room
+     * @param result   the callback notified with whether the user was a member, and is not a member via other nodes
+     */
+    public void leave(long roomId, UserInfo userInfo, Consumer<Boolean> result) {
+        String userId = userInfo.id();
+        partitionFor(roomId).removeAndShare(key(roomId, userId), previous -> result.accept(previous != null && !isMemberViaOtherNodes(roomId, userId)));
+    }
+
+    private boolean isMemberViaOtherNodes(long roomId, String userId) {
+        // The cluster-wide index, rather than the local partition, tells whether the user is a member.
+        Map<String, Member> members = index.get(roomId);
+        Member member = members == null ? null : members.get(userId);
+        if (member == null) {
+            return false;
+        }
+        String localURL = oort.getURL();
+        for (String oortURL : member.oortURLs()) {
+            if (!oortURL.equals(localURL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p>Removes the members of the given room that joined via the local node.</p>
+     * <p>Every node removes its own members, so that eventually the room has no members.</p>
+     *
+     * @param roomId the room id
+     * @return the members that have been removed
+     */
+    public List<UserInfo> removeLocal(long roomId) {
+        Map<String, Member> members = index.get(roomId);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        OortStringMap<UserInfo> partition = partitionFor(roomId);
+        OortObject.Info<ConcurrentMap<String, UserInfo>> localInfo = partition.getInfo(oort.getURL());
+        if (localInfo == null) {
+            return Collections.emptyList();
+        }
+        ConcurrentMap<String, UserInfo> local = localInfo.getObject();
+        List<UserInfo> result = new ArrayList<>();
+        for (Member member : members.values()) {
+            UserInfo userInfo = member.userInfo();
+            String key = key(roomId, userInfo.id());
+            if (local.containsKey(key)) {
+                result.add(userInfo);
+                partition.removeAndShare(key, null);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param roomId the room id
+     * @param userId the user id
+     * @return whether the given user is a member of the given room
+     */
+    public boolean isMember(long roomId, String userId) {
+        Map<String, Member> members = index.get(roomId);
+        return members != null && members.containsKey(userId);
+    }
+
+    /**
+     * @param roomId the room id
+     * @return the members of the given room
+     */
+    public List<UserInfo> getMembers(long roomId) {
+        Map<String, Member> members = index.get(roomId);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        List<UserInfo> result = new ArrayList<>(members.size());
+        for (Member member : members.values()) {
+            result.add(member.userInfo());
+        }
+        return result;
+    }
+
+    @Override
+    public void onPut(OortObject.Info<ConcurrentMap<String, UserInfo>> info, OortMap.Entry<String, UserInfo> entry) {
+        String key = entry.getKey();
+        String userId = userIdOf(key);
+        UserInfo userInfo = entry.getNewValue();
+        String oortURL = info.getOortURL();
+        // Use compute() to be atomic with respect to the removal of empty rooms in unindex().
+        index.compute(roomIdOf(key), (roomId, members) -> {
+            if (members == null) {
+                members = new ConcurrentHashMap<>();
+            }
+            members.compute(userId, (id, member) -> member == null ? new Member(userInfo, Set.of(oortURL)) : member.with(userInfo, oortURL));
+            return members;
+        });
+    }
+
+    @Override
+    public void onRemoved(OortObject.Info<ConcurrentMap<String, UserInfo>> info, OortMap.Entry<String, UserInfo> entry) {
+        unindex(entry.getKey(), info.getOortURL());
+    }
+
+    private void unindex(String key, String oortURL) {
+        String userId = userIdOf(key);
+        index.computeIfPresent(roomIdOf(key), (roomId, members) -> {
+            members.computeIfPresent(userId, (id, member) -> member.without(oortURL));
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    private OortStringMap<UserInfo> partitionFor(long roomId) {
+        return partitions.get(Math.floorMod(Long.hashCode(roomId), partitions.size()));
+    }
+
+    private static String key(long roomId, String userId) {
+        return String.valueOf(roomId) + SEPARATOR + userId;
+    }
+
+    private static long roomIdOf(String key) {
+        return Long.parseLong(key, 0, key.indexOf(SEPARATOR), 10);
+    }
+
+    private static String userIdOf(String key) {
+        return key.substring(key.indexOf(SEPARATOR) + 1);
+    }
+
+    /**
+     * @param userInfo the member
+     * @param oortURLs the URLs of the nodes that have an entry for the member
+     */
+    private record Member(UserInfo userInfo, Set<String> oortURLs)
+    {
+        private Member with(UserInfo userInfo, String oortURL) {
+            if (oortURLs.contains(oortURL)) {
+                return new Member(userInfo, oortURLs);
+            }
+            Set<String> urls = new HashSet<>(oortURLs);
+            urls.add(oortURL);
+            return new Member(userInfo, Set.copyOf(urls));
+        }
+
+        /**
+         * @return the member without the given node, or null if no other node has an entry for the member
+         */
+        private Member without(String oortURL) {
+            if (!oortURLs.contains(oortURL)) {
+                return this;
+            }
+            if (oortURLs.size() == 1) {
+                return null;
+            }
+            Set<String> urls = new HashSet<>(oortURLs);
+            urls.remove(oortURL);
+            return new Member(userInfo, Set.copyOf(urls));
+        }
+    }
+}
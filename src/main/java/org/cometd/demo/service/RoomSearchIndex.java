@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.cometd.demo.model.Membership;
+import org.cometd.demo.model.RoomInfo;
+
+/**
+ * <p>{@link RoomSearchIndex} indexes the rooms of the cluster by the words of their names, to support
+ * prefix searches without sending the whole room list to clients.</p>
+ * <p>Room names are split in lower case tokens at non letter or digit characters. A query matches
+ * a room when every token of the query is a prefix of some token of the room name.</p>
+ * <p>Results are ordered by room id, and paged using the id of the last room of the previous page
+ * as cursor. A page is produced by merging, in id order and starting after the cursor, the ids
+ * of the rooms with a token matching the first token of the query, and by checking the other
+ * tokens of the query against the tokens of each room, so that the cost of a page does not
+ * depend on how deep the page is.</p>
+ * <p>The total number of rooms matching a query is computed only for the first request of that
+ * query, and cached until the index changes, so that requests for the next pages do not need
+ * to walk all the matching rooms.</p>
+ */
+public class RoomSearchIndex {
+    private static final int MAX_CACHED_TOTALS = 256;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<Long, Entry> rooms = new TreeMap<>();
+    private final NavigableMap<String, NavigableSet<Long>> tokens = new TreeMap<>();
+    private final Map<TotalKey, Integer> totals = new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TotalKey, Integer> eldest) {
+            return size() > MAX_CACHED_TOTALS;
+        }
+    };
+    private long version;
+
+    /**
+     * @param roomInfo the room to add or replace
+     */
+    public void put(RoomInfo roomInfo) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = new Entry(roomInfo, tokenize(roomInfo.name()));
+            Entry existing = rooms.put(roomInfo.id(), entry);
+            if (existing != null) {
+                unindex(existing);
+            }
+            for (String token : entry.tokens()) {
+                tokens.computeIfAbsent(token, key -> new TreeSet<>()).add(roomInfo.id());
+            }
+            changed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param roomInfo the room to remove
+     */
+    public void remove(RoomInfo roomInfo) {
+        lock.writeLock().lock();
+        try {
+            Entry existing = rooms.remove(roomInfo.id());
+            if (existing != null) {
+                unindex(existing);
+                changed();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(Entry entry) {
+        long id = entry.roomInfo().id();
+        for (String token : entry.tokens()) {
+            NavigableSet<Long> ids = tokens.get(token);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    tokens.remove(token);
+                }
+            }
+        }
+    }
+
+    private void changed() {
+        ++version;
+        synchronized (totals) {
+            totals.clear();
+        }
+    }
+
+    /**
+     * @param query      the search query, an empty query matches all rooms
+     * @param membership the membership of the user, only rooms that the user can join are returned
+     * @param cursor     the id of the last room of the previous page, or null for the first page
+     * @param limit      the max number of rooms to return
+     * @return a page of rooms matching the query
+     */
+    public Page search(String query, Membership membership, Long cursor, int limit) {
+        List<String> queryTokens = tokenize(query);
+        lock.readLock().lock();
+        try {
+            Iterator<Long> candidates = candidates(queryTokens, cursor);
+            List<RoomInfo> result = new ArrayList<>(Math.min(limit, 64));
+            Long next = null;
+            while (candidates.hasNext()) {
+                Entry entry = rooms.get(candidates.next());
+                if (!matches(entry, queryTokens, membership)) {
+                    continue;
+                }
+                if (result.size() == limit) {
+                    // There is at least another page.
+                    next = result.get(result.size() - 1).id();
+                    break;
+                }
+                result.add(entry.roomInfo());
+            }
+            return new Page(result, total(queryTokens, membership), next);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int total(List<String> queryTokens, Membership membership) {
+        TotalKey key = new TotalKey(queryTokens, membership, version);
+        synchronized (totals) {
+            Integer total = totals.get(key);
+            if (total != null) {
+                return total;
+            }
+        }
+        int total = 0;
+        Iterator<Long> candidates = candidates(queryTokens, null);
+        while (candidates.hasNext()) {
+            if (matches(rooms.get(candidates.next()), queryTokens, membership)) {
+                ++total;
+            }
+        }
+        synchronized (totals) {
+            totals.put(key, total);
+        }
+        return total;
+    }
+
+    private Iterator<Long> candidates(List<String> queryTokens, Long cursor) {
+        if (queryTokens.isEmpty()) {
+            NavigableSet<Long> ids = rooms.navigableKeySet();
+            return (cursor == null ? ids : ids.tailSet(cursor, false)).iterator();
+        }
+        // Only the first token of the query selects candidates, the others are checked on each candidate.
+        String prefix = queryTokens.get(0);
+        Collection<NavigableSet<Long>> matches = tokens.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values();
+        if (matches.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        List<Iterator<Long>> iterators = new ArrayList<>(matches.size());
+        for (NavigableSet<Long> ids : matches) {
+            iterators.add((cursor == null ? ids : ids.tailSet(cursor, false)).iterator());
+        }
+        return iterators.size() == 1 ? iterators.get(0) : new MergeIterator(iterators);
+    }
+
+    private static boolean matches(Entry entry, List<String> queryTokens, Membership membership) {
+        if (!entry.roomInfo().membership().implies(membership)) {
+            return false;
+        }
+        for (int i = 1; i < queryTokens.size(); ++i) {
+            String prefix = queryTokens.get(i);
+            boolean found = false;
+            for (String token : entry.tokens()) {
+                if (token.startsWith(prefix)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); ++i) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param rooms  the rooms of this page
+     * @param total  the total number of rooms matching the query
+     * @param cursor the cursor to request the next page, or null if this is the last page
+     */
+    public record Page(List<RoomInfo> rooms, int total, Long cursor)
+    {
+    }
+
+    private record Entry(RoomInfo roomInfo, List<String> tokens)
+    {
+    }
+
+    private record TotalKey(List<String> queryTokens, Membership membership, long version)
+    {
+    }
+
+    /**
+     * <p>Merges iterators of ascending ids into a single iterator of ascending distinct ids.</p>
+     */
+    private static class MergeIterator implements Iterator<Long> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+        private Long last;
+
+        private MergeIterator(List<Iterator<Long>> iterators) {
+            for (Iterator<Long> iterator : iterators) {
+                advance(iterator);
+            }
+        }
+
+        private void advance(Iterator<Long> iterator) {
+            if (iterator.hasNext()) {
+                heads.add(new Head(iterator.next(), iterator));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            // Skip the ids already returned, a room may have several tokens matching the prefix.
+            while (!heads.isEmpty() && heads.peek().id.equals(last)) {
+                Head head = heads.poll();
+                advance(head.iterator);
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Long next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Head head = heads.poll();
+            advance(head.iterator);
+            last = head.id;
+            return last;
+        }
+    }
+
+    private record Head(Long id, Iterator<Long> iterator) implements Comparable<Head>
+    {
+        @Override
+        public int compareTo(Head that) {
+            return Long.compare(id, that.id);
+        }
+    }
+}
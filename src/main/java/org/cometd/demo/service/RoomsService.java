@@ -16,7 +16,6 @@
 
 package org.cometd.demo.service;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,16 +23,21 @@ import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import org.cometd.annotation.Listener;
 import org.cometd.annotation.Service;
 import org.cometd.annotation.Session;
-import org.cometd.annotation.server.Configure;
 import org.cometd.bayeux.Promise;
 import org.cometd.bayeux.server.BayeuxServer;
 import org.cometd.bayeux.server.ConfigurableServerChannel;
@@ -42,13 +46,13 @@ import org.cometd.bayeux.server.ServerChannel;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.demo.Node;
+import org.cometd.demo.model.Membership;
 import org.cometd.demo.model.RoomInfo;
 import org.cometd.demo.model.UserInfo;
 import org.cometd.oort.Oort;
 import org.cometd.oort.OortMap;
 import org.cometd.oort.OortObject;
 import org.cometd.oort.OortObjectFactories;
-import org.cometd.oort.OortObjectMergers;
 import org.cometd.oort.OortStringMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,13 +65,13 @@ import org.slf4j.LoggerFactory;
  * <p>Every time a room is created/removed  in a node, it is added to the {@link OortMap} and shared
  * across all nodes. Every {@link RoomsService} on every node listens for room added/removed events,
  * and collaborates with the {@link RoomMembersService} to maintain the room's members list.</p>
- * <p>Every time a room is created/removed in a node, this service needs to broadcast the new room list
+ * <p>Every time a room is created/removed in a node, this service needs to broadcast the room list changes
  * to all clients in all nodes. There are two ways of doing this:</p>
  * <ul>
  * <li>
  *     have each {@link RoomsService} register itself as an {@link OortMap.EntryListener}, so that
  *     room list changes are broadcast across nodes via {@link OortMap} features, and then have
- *     each node broadcast the whole room list to locally connected users via a standard
+ *     each node broadcast the room list changes to locally connected users via a standard
  *     {@link ServerChannel#publish(org.cometd.bayeux.Session, Object, Promise)}
  * </li>
  * <li>
@@ -80,38 +84,102 @@ import org.slf4j.LoggerFactory;
  * way with {@link RoomMembersService}.
  * <p/>
  * {@link RoomMembersService} implements the latter solution.
+ * <p>The {@link RoomInfo}s of all nodes are also indexed locally by room id in a {@link RoomIndex},
+ * together with the Oort URL of the node that owns the room and the room chat channel, so that lookups
+ * do not need to search the {@link OortMap} of every node.</p>
+ * <p>Room list changes are broadcast as versioned deltas maintained by a {@link RoomCatalog}, so that
+ * a change to one room does not push the whole room list to every user. New users, and users that
+ * detect a gap in the versions, receive a snapshot of the whole room list, which is encoded only once
+ * per change rather than once per user.</p>
+ * <p>There is one {@link RoomCatalog} per {@link Membership} tier, each pushed on its own channel,
+ * to which users are subscribed by the server according to their membership, so that users only
+ * receive the rooms they are allowed to join.</p>
+ * <p>Snapshots only contain the first page of rooms, and the total number of rooms. Users retrieve further
+ * pages, or search rooms by name, via a {@link RoomSearchIndex}.</p>
+ * <p>When a node leaves the cluster, its rooms are not removed: they are re-homed in the index to their
+ * standby node, that serves their chat history from its replicas until the owner node shares its rooms again.</p>
  */
 @Service(RoomsService.NAME)
 public class RoomsService implements BayeuxServer.SessionListener, OortMap.EntryListener<String, RoomInfo> {
     public static final String NAME = "rooms";
-    private static final String CHANNEL = "/rooms";
+    private static final String CHANNEL = "/rooms/";
     private static final Logger LOGGER = LoggerFactory.getLogger(RoomsService.class);
 
     private final Oort oort;
     private final Node node;
     private final UsersService usersService;
     private final RoomMembersService membersService;
+    private final ChatHistoryService chatHistoryService;
+    private final int pageSize;
+    private final Map<Membership, RoomCatalog> catalogs = new EnumMap<>(Membership.class);
+    private final RoomSearchIndex searchIndex = new RoomSearchIndex();
+    private final RoomIndex index = new RoomIndex();
+    private final List<Consumer<RoomInfo>> roomListeners = new CopyOnWriteArrayList<>();
     @Session
     private LocalSession session;
     private OortStringMap<RoomInfo> roomInfos;
 
-    public RoomsService(Oort oort, Node node, UsersService usersService, RoomMembersService membersService) {
+    /**
+     * @param oort               the Oort instance
+     * @param node               the local node
+     * @param usersService       the service to find users
+     * @param membersService     the service that maintains the room members
+     * @param chatHistoryService the local chat history storage, to drop the history of removed rooms
+     * @param pageSize           the max number of rooms pushed to users on login, and returned by each search
+     */
+    public RoomsService(Oort oort, Node node, UsersService usersService, RoomMembersService membersService, ChatHistoryService chatHistoryService, int pageSize) {
         this.oort = oort;
         this.node = node;
         this.usersService = usersService;
         this.membersService = membersService;
+        this.chatHistoryService = chatHistoryService;
+        this.pageSize = pageSize;
+        for (Membership membership : Membership.values()) {
+            String channel = getRoomsChannel(membership);
+            catalogs.put(membership, new RoomCatalog(membership, pageSize, delta -> broadcastRooms(channel, delta), this::encode));
+        }
     }
 
-    @Configure(CHANNEL)
-    public void configureRoomsChannel(ConfigurableServerChannel channel) {
-        channel.setPersistent(true);
+    /**
+     * @param membership the membership tier
+     * @return the channel where the room list for the given membership tier is pushed
+     */
+    public static String getRoomsChannel(Membership membership) {
+        return CHANNEL + membership.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @param channelName the channel name
+     * @return whether the given channel is one of the room list channels
+     */
+    public static boolean isRoomsChannel(String channelName) {
+        return channelName.startsWith(CHANNEL);
     }
 
     @PostConstruct
     private void construct() throws Exception {
+        for (Membership membership : Membership.values()) {
+            oort.getBayeuxServer().createChannelIfAbsent(getRoomsChannel(membership), new ConfigurableServerChannel.Initializer.Persistent());
+        }
+
         roomInfos = new OortStringMap<>(oort, NAME, OortObjectFactories.forConcurrentMap());
         roomInfos.start();
         roomInfos.addListener(new OortMap.DeltaListener<>(roomInfos));
+        roomInfos.addListener(new OortObject.Listener<>() {
+            @Override
+            public void onUpdated(OortObject.Info<ConcurrentMap<String, RoomInfo>> oldInfo, OortObject.Info<ConcurrentMap<String, RoomInfo>> newInfo) {
+                // Updates are converted into entry events by the DeltaListener.
+            }
+
+            @Override
+            public void onRemoved(OortObject.Info<ConcurrentMap<String, RoomInfo>> info) {
+                // A node left the cluster, re-home its rooms to their standby node.
+                String oortURL = info.getOortURL();
+                for (RoomIndex.Entry entry : index.replaceAll(oortURL, entry -> rehome(entry, oortURL))) {
+                    roomRemoved(entry);
+                }
+            }
+        });
         roomInfos.addEntryListener(this);
 
         List<RoomInfo> chatRooms = loadRooms();
@@ -121,7 +189,6 @@ public class RoomsService implements BayeuxServer.SessionListener, OortMap.Entry
         for (RoomInfo roomInfo : chatRooms) {
             roomInfos.putAndShare(String.valueOf(roomInfo.id()), roomInfo, null);
         }
-        broadcastRooms();
 
         oort.getBayeuxServer().addListener(this);
     }
@@ -131,19 +198,86 @@ public class RoomsService implements BayeuxServer.SessionListener, OortMap.Entry
         oort.getBayeuxServer().removeListener(this);
         roomInfos.removeEntryListener(this);
         roomInfos.stop();
+        for (Membership membership : Membership.values()) {
+            oort.getBayeuxServer().getChannel(getRoomsChannel(membership)).setPersistent(false);
+        }
+    }
+
+    private RoomIndex.Entry rehome(RoomIndex.Entry entry, String oortURL) {
+        String standbyURL = findStandbyOortURLFor(entry.id(), oortURL);
+        if (standbyURL == null) {
+            return null;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Re-homing {} from {} to {}", entry.roomInfo(), oortURL, standbyURL);
+        }
+        // The standby node only serves the room, it does not own it.
+        return new RoomIndex.Entry(entry.id(), entry.roomInfo(), standbyURL, false, entry.chatChannel());
+    }
+
+    /**
+     * @param roomId the room id
+     * @return the index entry for the given room, owned by any node, or null if there is no such room
+     */
+    public RoomIndex.Entry findRoom(long roomId) {
+        return index.get(roomId);
     }
 
     public String findOortURLFor(long roomId) {
-        OortObject.Info<ConcurrentMap<String, RoomInfo>> info = roomInfos.findInfo(String.valueOf(roomId));
-        return info == null ? null : info.getOortURL();
+        RoomIndex.Entry entry = index.get(roomId);
+        return entry == null ? null : entry.oortURL();
+    }
+
+    /**
+     * <p>Returns the node that keeps a standby copy of the chat history of the given room.</p>
+     * <p>The standby node is chosen among the nodes of the cluster other than the owner node via
+     * rendezvous hashing of the room id: each node has a weight that only depends on the room id and
+     * on the node URL, and the node with the highest weight is the standby node.
+     * In this way, all nodes choose the same standby node as long as they see the same nodes, and
+     * the standby node does not change when the owner node leaves the cluster.</p>
+     *
+     * @param roomId the room id
+     * @return the Oort URL of the standby node of the room, or null if there is no such node
+     */
+    public String findStandbyOortURLFor(long roomId) {
+        RoomIndex.Entry entry = index.get(roomId);
+        return entry == null ? null : findStandbyOortURLFor(roomId, entry.oortURL());
+    }
+
+    private String findStandbyOortURLFor(long roomId, String ownerURL) {
+        List<String> candidates = new ArrayList<>(oort.getKnownComets());
+        candidates.add(oort.getURL());
+        String result = null;
+        long maxWeight = 0;
+        for (String candidate : candidates) {
+            if (candidate.equals(ownerURL)) {
+                continue;
+            }
+            long weight = weight(roomId, candidate);
+            if (result == null || weight > maxWeight || (weight == maxWeight && candidate.compareTo(result) < 0)) {
+                result = candidate;
+                maxWeight = weight;
+            }
+        }
+        return result;
+    }
+
+    private static long weight(long roomId, String oortURL) {
+        // The finalizer of MurmurHash3, to spread the combined hashes.
+        long hash = roomId * 0x9E3779B97F4A7C15L + oortURL.hashCode();
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
     }
 
     public RoomInfo findRoomInfo(long roomId) {
-        return roomInfos.find(String.valueOf(roomId));
+        RoomIndex.Entry entry = index.get(roomId);
+        return entry == null ? null : entry.roomInfo();
     }
 
     public RoomInfo getRoomInfo(long roomId) {
-        return roomInfos.get(String.valueOf(roomId));
+        RoomIndex.Entry entry = index.get(roomId);
+        return entry == null || !entry.local() ? null : entry.roomInfo();
     }
 
     public void replaceRoomInfo(RoomInfo roomInfo) {
@@ -154,47 +288,138 @@ public class RoomsService implements BayeuxServer.SessionListener, OortMap.Entry
         roomInfos.putAndShare(String.valueOf(roomInfo.id()), roomInfo, null);
     }
 
+    /**
+     * @param listener the listener notified of the rooms added or replaced by any node
+     */
+    public void addRoomListener(Consumer<RoomInfo> listener) {
+        roomListeners.add(listener);
+    }
+
     @Override
     public void sessionAdded(ServerSession remote, ServerMessage message) {
-        // New user, deliver rooms
-        deliverRooms(remote);
+        UserInfo userInfo = usersService.getUserInfo(remote);
+        if (userInfo != null) {
+            // New user, subscribe it to the room list changes of its membership tier, and deliver rooms.
+            // The subscription is performed by the server, so that users cannot see the rooms of other tiers.
+            oort.getBayeuxServer().getChannel(getRoomsChannel(userInfo.membership())).subscribe(remote);
+            deliverRooms(remote, userInfo);
+        }
     }
 
     @Override
     public void onPut(OortObject.Info<ConcurrentMap<String, RoomInfo>> info, OortMap.Entry<String, RoomInfo> entry) {
         // Update rooms members
-        membersService.roomAdded(entry.getNewValue());
-        if (!info.isLocal()) {
-            broadcastRooms();
+        RoomInfo roomInfo = entry.getNewValue();
+        membersService.roomAdded(roomInfo);
+        // Update the index, reusing the chat channel if the room is being replaced
+        long roomId = roomInfo.id();
+        RoomIndex.Entry existing = index.get(roomId);
+        ServerChannel chatChannel = existing == null ? newChatChannel(roomId) : existing.chatChannel();
+        index.put(new RoomIndex.Entry(roomId, roomInfo, info.getOortURL(), info.isLocal(), chatChannel));
+        searchIndex.put(roomInfo);
+        for (RoomCatalog catalog : catalogs.values()) {
+            catalog.put(roomInfo);
+        }
+        for (Consumer<RoomInfo> listener : roomListeners) {
+            listener.accept(roomInfo);
         }
     }
 
     @Override
     public void onRemoved(OortObject.Info<ConcurrentMap<String, RoomInfo>> info, OortMap.Entry<String, RoomInfo> entry) {
+        RoomIndex.Entry removed = index.remove(entry.getOldValue().id(), info.getOortURL());
+        if (removed != null) {
+            roomRemoved(removed);
+        }
+    }
+
+    private void roomRemoved(RoomIndex.Entry entry) {
         // Update rooms members
-        membersService.roomRemoved(entry.getOldValue());
-        if (!info.isLocal()) {
-            broadcastRooms();
+        RoomInfo roomInfo = entry.roomInfo();
+        membersService.roomRemoved(roomInfo);
+        chatHistoryService.roomRemoved(roomInfo);
+        entry.chatChannel().setPersistent(false);
+        searchIndex.remove(roomInfo);
+        for (RoomCatalog catalog : catalogs.values()) {
+            catalog.remove(roomInfo);
         }
     }
 
-    private void deliverRooms(ServerSession remote) {
+    private ServerChannel newChatChannel(long roomId) {
+        // Keep the channel around even when there are no subscribers,
+        // so that the reference stored in the index remains valid.
+        ServerChannel channel = oort.getBayeuxServer().createChannelIfAbsent("/chat/" + roomId).getReference();
+        channel.setPersistent(true);
+        return channel;
+    }
+
+    /**
+     * Remote clients that detect a gap in the room list versions send a message
+     * to request the whole room list that is handled by this method.
+     *
+     * @param remote  the remote client
+     * @param message the room list request message
+     */
+    @Listener("/service/rooms")
+    public void requestRooms(ServerSession remote, ServerMessage message) {
         UserInfo userInfo = usersService.getUserInfo(remote);
         if (userInfo != null) {
-            Collection<RoomInfo> rooms = roomInfos.merge(OortObjectMergers.concurrentMapUnion()).values();
+            deliverRooms(remote, userInfo);
+        }
+    }
+
+    /**
+     * Remote clients send a message to search rooms by name, or to retrieve the next page of rooms,
+     * that is handled by this method.
+     * Only the rooms that the user is allowed to join are returned.
+     *
+     * @param remote  the remote client
+     * @param message the search message, with the {@code query}, and optionally the {@code cursor}
+     *                of the previous page and the {@code limit} of rooms to return
+     */
+    @Listener("/service/rooms/search")
+    public void searchRooms(ServerSession remote, ServerMessage message) {
+        UserInfo userInfo = usersService.getUserInfo(remote);
+        if (userInfo == null) {
+            return;
+        }
+        Map<String, Object> data = message.getDataAsMap();
+        String query = (String)data.get("query");
+        Number cursor = (Number)data.get(RoomCatalog.CURSOR);
+        Number limit = (Number)data.get("limit");
+        int max = limit == null ? pageSize : Math.max(1, Math.min(pageSize, limit.intValue()));
+        RoomCatalog catalog = catalogs.get(userInfo.membership());
+        RoomSearchIndex.Page page = searchIndex.search(query, catalog.getMembership(), cursor == null ? null : cursor.longValue(), max);
+        Map<String, Object> result = new HashMap<>(4);
+        result.put("query", query);
+        result.put(RoomCatalog.ROOMS, page.rooms());
+        result.put(RoomCatalog.TOTAL, page.total());
+        result.put(RoomCatalog.CURSOR, page.cursor());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Delivering search results to user '{}': {}", userInfo.id(), result);
+        }
+        remote.deliver(session, message.getChannel(), result, Promise.noop());
+    }
+
+    private void deliverRooms(ServerSession remote, UserInfo userInfo) {
+        Membership membership = userInfo.membership();
+        catalogs.get(membership).snapshot(snapshot -> {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Delivering rooms to user '{}': {}", userInfo.id(), rooms);
+                LOGGER.debug("Delivering rooms to user '{}': {}", userInfo.id(), snapshot);
             }
-            remote.deliver(session, CHANNEL, rooms, Promise.noop());
-        }
+            remote.deliver(session, getRoomsChannel(membership), snapshot, Promise.noop());
+        });
     }
 
-    protected void broadcastRooms() {
-        Collection<RoomInfo> rooms = roomInfos.merge(OortObjectMergers.concurrentMapUnion()).values();
+    private void broadcastRooms(String channel, Map<String, Object> delta) {
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Broadcasting rooms {}", rooms);
+            LOGGER.debug("Broadcasting rooms on {}: {}", channel, delta);
         }
-        oort.getBayeuxServer().getChannel(CHANNEL).publish(session, rooms, Promise.noop());
+        oort.getBayeuxServer().getChannel(channel).publish(session, delta, Promise.noop());
+    }
+
+    private String encode(Object object) {
+        return oort.getJSONContextClient().getGenerator().generate(object);
     }
 
     @SuppressWarnings("unchecked")
@@ -202,7 +427,11 @@ public class RoomsService implements BayeuxServer.SessionListener, OortMap.Entry
         String fileName = "rooms-" + node.id() + ".json";
         InputStream stream = getClass().getClassLoader().getResourceAsStream(fileName);
         if (stream == null) {
-            throw new FileNotFoundException(fileName);
+            // Nodes without a rooms file, such as the additional nodes of the load test, start without rooms.
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("No {}, node {} has no initial rooms", fileName, node.id());
+            }
+            return List.of();
         }
 
         try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
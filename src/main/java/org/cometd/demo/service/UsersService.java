@@ -39,6 +39,8 @@ import org.slf4j.LoggerFactory;
  * <p>In order to maintain this {@link OortMap}, it register itself as a {@link BayeuxServer.SessionListener}
  * so that it is notified every time a new session is created/destroyed on the local node.</p>
  * <p>This service does not directly interacts with remote clients, but it is used by other services.</p>
+ * <p>The time to handle the sessions of users added and removed is measured by the
+ * {@link MetricsService#SESSION_ADD} and {@link MetricsService#SESSION_REMOVE} metrics.</p>
  */
 @Service(UsersService.NAME)
 public class UsersService implements BayeuxServer.SessionListener {
@@ -48,10 +50,14 @@ public class UsersService implements BayeuxServer.SessionListener {
 
     private final ConcurrentMap<String, ServerSession> userToSession = new ConcurrentHashMap<>();
     private final Seti seti;
+    private final Metric addMetric;
+    private final Metric removeMetric;
     private OortStringMap<UserInfo> userInfos;
 
-    public UsersService(Seti seti) {
+    public UsersService(Seti seti, MetricsService metricsService) {
         this.seti = seti;
+        this.addMetric = metricsService.metric(MetricsService.SESSION_ADD);
+        this.removeMetric = metricsService.metric(MetricsService.SESSION_REMOVE);
     }
 
     @PostConstruct
@@ -71,6 +77,7 @@ public class UsersService implements BayeuxServer.SessionListener {
     public void sessionAdded(ServerSession session, ServerMessage message) {
         UserInfo userInfo = (UserInfo)session.getAttribute(USER_INFO);
         if (userInfo != null) {
+            long begin = addMetric.begin();
             String userId = userInfo.id();
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Logged in user '{}'@{}", userId, session.getId());
@@ -82,6 +89,7 @@ public class UsersService implements BayeuxServer.SessionListener {
                 // Track and share with other nodes the new session on this local node.
                 userInfos.putAndShare(userId, userInfo, null);
             }
+            addMetric.succeeded(begin);
         }
     }
 
@@ -91,6 +99,7 @@ public class UsersService implements BayeuxServer.SessionListener {
         UserInfo userInfo = (UserInfo)session.getAttribute(USER_INFO);
         if (userInfo != null)
         {
+            long begin = removeMetric.begin();
             String userId = userInfo.id();
             if (LOGGER.isDebugEnabled())
             {
@@ -99,6 +108,7 @@ public class UsersService implements BayeuxServer.SessionListener {
             userInfos.removeAndShare(userId, null);
             seti.disassociate(userId, session);
             userToSession.remove(userId);
+            removeMetric.succeeded(begin);
         }
     }
 
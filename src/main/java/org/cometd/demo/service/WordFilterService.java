@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2013-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cometd.demo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.cometd.annotation.Service;
+import org.cometd.demo.WordFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link WordFilterService} holds the {@link WordFilter} used by {@link ChatService} to replace
+ * bad words in chat messages.</p>
+ * <p>The dictionary is read from the file specified at construction, or from the {@code bad_words.properties}
+ * classpath resource. When the dictionary is a file, it is periodically checked for modifications and
+ * reloaded without restarting the node; the new {@link WordFilter} replaces the old one atomically.</p>
+ * <p>This service does not use any Oort features: each node loads its own dictionary.</p>
+ */
+@Service(WordFilterService.NAME)
+public class WordFilterService {
+    public static final String NAME = "word_filter";
+    private static final String RESOURCE = "bad_words.properties";
+    private static final Logger LOGGER = LoggerFactory.getLogger(WordFilterService.class);
+
+    private final String fileName;
+    private final long scanPeriod;
+    private volatile WordFilter wordFilter = WordFilter.empty();
+    private ScheduledExecutorService scheduler;
+    private Path file;
+    private FileTime lastModified;
+
+    /**
+     * @param fileName   the dictionary file, or null to use the classpath resource
+     * @param scanPeriod the period, in milliseconds, to check the dictionary file for modifications,
+     *                   or a non-positive value to disable the hot reload
+     */
+    public WordFilterService(String fileName, long scanPeriod) {
+        this.fileName = fileName;
+        this.scanPeriod = scanPeriod;
+    }
+
+    @PostConstruct
+    private void construct() throws IOException {
+        file = resolve();
+        if (file == null) {
+            InputStream stream = getClass().getClassLoader().getResourceAsStream(RESOURCE);
+            if (stream != null) {
+                try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                    update(WordFilter.load(reader));
+                }
+            }
+        } else {
+            reload();
+            if (scanPeriod > 0) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                scheduler.scheduleWithFixedDelay(this::scan, scanPeriod, scanPeriod, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public String filter(String text) {
+        return wordFilter.filter(text);
+    }
+
+    /**
+     * <p>Reloads the dictionary file, if any, regardless of its modification time.</p>
+     *
+     * @throws IOException if the dictionary file cannot be read
+     */
+    public synchronized void reload() throws IOException {
+        if (file != null) {
+            FileTime modified = Files.getLastModifiedTime(file);
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                update(WordFilter.load(reader));
+            }
+            lastModified = modified;
+        }
+    }
+
+    private synchronized void scan() {
+        try {
+            if (!Files.getLastModifiedTime(file).equals(lastModified)) {
+                reload();
+            }
+        } catch (Throwable x) {
+            // Keep the current filter, and retry at the next scan.
+            LOGGER.warn("Could not reload bad words from " + file, x);
+        }
+    }
+
+    private void update(WordFilter wordFilter) {
+        this.wordFilter = wordFilter;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Loaded {} bad words", wordFilter.size());
+        }
+    }
+
+    private Path resolve() throws IOException {
+        if (fileName != null) {
+            return Paths.get(fileName);
+        }
+        // Allow hot reload also when the classpath resource is a plain file.
+        URL url = getClass().getClassLoader().getResource(RESOURCE);
+        if (url != null && "file".equals(url.getProtocol())) {
+            try {
+                return Paths.get(url.toURI());
+            } catch (URISyntaxException x) {
+                throw new IOException(x);
+            }
+        }
+        return null;
+    }
+}
@@ -48,6 +48,13 @@ require({
                 }
             });
 
+            var searchField = $('#rooms-search');
+            searchField.on('keyup', function(e) {
+                if (e.keyCode === 13) {
+                    chat.searchRooms(searchField.val());
+                }
+            });
+
             window.onbeforeunload = chat.logout;
             $(window).on("unload", chat.logout);
 
@@ -57,18 +64,21 @@ require({
                 url: cometURL,
                 logLevel: 'info'
             });
+            // The server subscribes users to the room list of their membership tier
+            cometd.addListener('/rooms/*', chat.onRooms);
             cometd.addListener('/meta/handshake', function(message) {
                 if (message.successful) {
                     cometd._info('Logged in user', chat.user);
                     cometd.batch(function() {
                         cometd.subscribe('/users', chat.onUsers);
-                        cometd.subscribe('/rooms', chat.onRooms);
                         cometd.subscribe('/service/room/join', chat.onRoomJoined);
                         cometd.subscribe('/service/room/leave', chat.onRoomLeft);
                         cometd.subscribe('/service/room/edit', chat.onRoomEdit);
                         cometd.subscribe('/service/room/create', chat.onRoomCreate);
                         cometd.subscribe('/service/chat', chat.onChatHistory);
+                        cometd.subscribe('/service/chat/history', chat.onChatHistoryPage);
                         cometd.subscribe('/service/status', chat.onStatus);
+                        cometd.subscribe('/service/rooms/search', chat.onRoomsSearch);
                         chat.resubscribe();
                         cometd.publish('/service/init', {});
                     });
@@ -80,10 +90,16 @@ require({
             var _self = this;
             var _userId;
             var _rooms;
+            var _roomsVersion;
+            var _roomsRequested;
+            var _roomsTotal;
+            var _roomsCursor;
+            var _roomsQuery = '';
             var _room;
             var _members;
             var _membersSubscription;
             var _chatSubscription;
+            var _historyCursor;
 
             function _uiSetNewRoom() {
                 $('#rooms-header').empty().append($('<img src="' + contextPath + '/images/add.svg" title="New Room" />')
@@ -123,13 +139,21 @@ require({
 
                 _userId = undefined;
                 _rooms = undefined;
+                _roomsVersion = undefined;
+                _roomsRequested = undefined;
+                _roomsTotal = undefined;
+                _roomsCursor = undefined;
+                _roomsQuery = '';
                 _room = undefined;
                 _members = undefined;
                 _membersSubscription = undefined;
                 _chatSubscription = undefined;
+                _historyCursor = undefined;
 
                 $('#message').hide();
                 $('#rooms-list').empty();
+                $('#rooms-more').empty();
+                $('#rooms-search').val('');
                 $('#members').empty();
                 $('#chat-history').empty();
                 $('#status').empty();
@@ -257,6 +281,24 @@ require({
                 _scrollDown();
             };
 
+            function _uiOlderChats() {
+                $('#chat-older').remove();
+                if (_historyCursor !== undefined) {
+                    $('#chat-history').prepend($('<div id="chat-older">Older messages</div>').on('click', function() {
+                        _self.olderChats();
+                    }));
+                }
+            }
+
+            this.olderChats = function() {
+                if (_room && _historyCursor !== undefined) {
+                    cometd.publish('/service/chat/history', {
+                        roomId: _room.id,
+                        before: _historyCursor
+                    });
+                }
+            };
+
             this.onChatHistory = function(message) {
                 var history = message.data;
                 cometd._info('Chat history', history);
@@ -265,22 +307,40 @@ require({
                 $.each(history.chats, function(i, item) {
                     chat.append(_uiForChatLine(item));
                 });
+                _historyCursor = history.chats.length > 0 && history.cursor > 0 ? history.cursor : undefined;
+                _uiOlderChats();
                 _scrollDown();
             };
 
+            this.onChatHistoryPage = function(message) {
+                var page = message.data;
+                if (!_room || _room.id !== page.roomId) {
+                    // Page of a room the user left.
+                    return;
+                }
+                cometd._info('Chat history page', page);
+                var chat = $('#chat-history');
+                var height = chat.prop('scrollHeight');
+                $('#chat-older').remove();
+                for (var i = page.chats.length - 1; i >= 0; --i) {
+                    chat.prepend(_uiForChatLine(page.chats[i]));
+                }
+                _historyCursor = page.cursor;
+                _uiOlderChats();
+                // Keep the messages that were visible in the same position.
+                chat.scrollTop(chat.scrollTop() + chat.prop('scrollHeight') - height);
+            };
+
             this.onMembers = function(message) {
                 var data = message.data;
                 cometd._info('Members', data);
                 _members = _members || {};
-                if ('join' === data.action) {
-                    $.each(data.members, function(i, member) {
-                        _members[member.id] = member;
-                    });
-                } else if ('leave' === data.action) {
-                    $.each(data.members, function(i, member) {
-                        delete _members[member.id];
-                    });
-                }
+                $.each(data.join || [], function(i, member) {
+                    _members[member.id] = member;
+                });
+                $.each(data.leave || [], function(i, member) {
+                    delete _members[member.id];
+                });
 
                 var memberNames = $.map(_members, function(member) {
                     return member.id;
@@ -373,11 +433,9 @@ require({
                     });
             }
 
-            this.onRooms = function(message) {
-                _rooms = message.data;
-                cometd._info('Rooms updated', _rooms);
+            function _uiRooms() {
                 $('#rooms-list').empty();
-                $.each(_rooms, function(i, room) {
+                $.each(_rooms, function(id, room) {
                     var line = $('<div id="room_' + room.id + '"/>');
                     var selected = _room && _room.id === room.id;
                     if (selected) {
@@ -391,6 +449,85 @@ require({
                     line.append($('<span>' + room.name + '</span>'));
                     $('#rooms-list').append(line);
                 });
+                var more = $('#rooms-more').empty();
+                if (_roomsTotal !== undefined) {
+                    more.append($('<span>' + Object.keys(_rooms).length + ' of ' + _roomsTotal + ' rooms</span>'));
+                }
+                if (_roomsCursor !== undefined) {
+                    more.append($('<button type="button">More</button>').on('click', function() {
+                        _self.moreRooms();
+                    }));
+                }
+            }
+
+            this.searchRooms = function(query) {
+                _roomsQuery = $.trim(query);
+                _roomsCursor = undefined;
+                _rooms = {};
+                cometd.publish('/service/rooms/search', {
+                    query: _roomsQuery
+                });
+            };
+
+            this.moreRooms = function() {
+                if (_roomsCursor !== undefined) {
+                    cometd.publish('/service/rooms/search', {
+                        query: _roomsQuery,
+                        cursor: _roomsCursor
+                    });
+                }
+            };
+
+            this.onRoomsSearch = function(message) {
+                var data = message.data;
+                if (data.query !== _roomsQuery) {
+                    // Reply to a previous search.
+                    return;
+                }
+                $.each(data.rooms || [], function(i, room) {
+                    _rooms[room.id] = room;
+                });
+                _roomsTotal = data.total;
+                _roomsCursor = data.cursor === null ? undefined : data.cursor;
+                cometd._info('Rooms found', _roomsQuery, _rooms);
+                _uiRooms();
+            };
+
+            this.onRooms = function(message) {
+                var data = message.data;
+                if (data.snapshot) {
+                    _rooms = {};
+                    _roomsRequested = false;
+                    _roomsQuery = '';
+                    _roomsCursor = data.cursor;
+                    $('#rooms-search').val('');
+                } else if (_roomsVersion === undefined || data.version > _roomsVersion + 1) {
+                    // Missed some room list changes, request the whole room list.
+                    if (!_roomsRequested) {
+                        cometd._info('Rooms version gap', _roomsVersion, '->', data.version);
+                        _roomsRequested = true;
+                        cometd.publish('/service/rooms', {});
+                    }
+                    return;
+                } else if (data.version <= _roomsVersion) {
+                    // Already applied.
+                    return;
+                }
+                _roomsVersion = data.version;
+                $.each(data.rooms || [], function(i, room) {
+                    // While searching, only update the rooms already shown.
+                    if (_roomsQuery === '' || _rooms[room.id]) {
+                        _rooms[room.id] = room;
+                    }
+                });
+                $.each(data.removed || [], function(i, roomId) {
+                    delete _rooms[roomId];
+                });
+                if (_roomsQuery === '') {
+                    _roomsTotal = data.total;
+                }
+                cometd._info('Rooms updated', _roomsVersion, _rooms);
+                _uiRooms();
             };
 
             this.onUsers = function(message) {